@@ -0,0 +1,485 @@
+package org.knowtiphy.babbage.server;
+
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.rdf.model.Model;
+import org.knowtiphy.babbage.storage.IStorage;
+import org.knowtiphy.babbage.storage.IStorageEventListener;
+import org.knowtiphy.babbage.storage.IStorageListener;
+import org.knowtiphy.babbage.storage.StorageEvent;
+import org.knowtiphy.babbage.storage.exceptions.StorageException;
+import org.knowtiphy.babbage.storage.remote.Connection;
+import org.knowtiphy.babbage.storage.remote.Frame;
+import org.knowtiphy.babbage.storage.remote.Wire;
+import org.knowtiphy.utils.LoggerUtils;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves a storage layer to clients in other processes on the same machine (see Wire for the protocol). Each
+ * request is run on its own thread, so a client can have many requests in flight at once on one connection --
+ * a slow operation or a long query doesn't hold up the others. Operations are started one at a time per client,
+ * in the order they arrive, so the storage sees them in the order the client sent them. Clients can subscribe to
+ * a feed of change events, either as RDF models or as typed events, which is pushed to them as the events happen.
+ *
+ * @author graham
+ */
+public class StorageServer implements AutoCloseable
+{
+	private static final Logger LOGGER = Logger.getLogger(StorageServer.class.getName());
+
+	private final IStorage storage;
+	private final SocketAddress address;
+	private final ServerSocketChannel server;
+	//	the most threads waiting for operations that can't tell us when they are done
+	private static final int MAX_OPERATION_WAITERS = Integer.getInteger("babbage.maxOperationWaiters", 16);
+
+	private final ExecutorService requests = Executors.newCachedThreadPool(r -> {
+		var thread = new Thread(r, "storage-server-request");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final ExecutorService waiters = Executors.newFixedThreadPool(MAX_OPERATION_WAITERS, r -> {
+		var thread = new Thread(r, "storage-server-wait");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final Set<Client> clients = ConcurrentHashMap.newKeySet();
+	//	the token clients must authenticate with, or null if the socket itself keeps other users out
+	private final byte[] token;
+
+	//	metrics
+	private final AtomicInteger connections = new AtomicInteger();
+	private final AtomicLong handled = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	public StorageServer(IStorage storage, SocketAddress address) throws IOException
+	{
+		this.storage = storage;
+		this.address = address;
+		if (address instanceof UnixDomainSocketAddress)
+		{
+			var path = ((UnixDomainSocketAddress) address).getPath();
+			//	in a directory only we can use, so nobody else can connect before the socket is restricted
+			Wire.createPrivateDirectories(path.toAbsolutePath().getParent());
+			//	left over from a server that didn't shut down cleanly
+			Files.deleteIfExists(path);
+			server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+			server.bind(address);
+			Wire.restrict(path);
+			token = null;
+		}
+		else
+		{
+			server = ServerSocketChannel.open();
+			server.bind(address);
+			token = Wire.newToken().getBytes(StandardCharsets.UTF_8);
+		}
+	}
+
+	//	accept clients until the server is closed
+
+	public void run() throws IOException
+	{
+		LOGGER.log(Level.INFO, "listening on {0}", address);
+		try
+		{
+			while (server.isOpen())
+			{
+				var channel = server.accept();
+				var client = new Client(new Connection(channel, "client-" + connections.incrementAndGet()));
+				clients.add(client);
+				client.start();
+			}
+		}
+		catch (ClosedChannelException ex)
+		{
+			//	closed
+		}
+	}
+
+	@Override
+	public void close()
+	{
+		LOGGER.log(Level.INFO, "{0}", this);
+		try
+		{
+			server.close();
+			if (address instanceof UnixDomainSocketAddress)
+			{
+				Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+			}
+			else
+			{
+				Wire.deleteToken();
+			}
+		}
+		catch (IOException ex)
+		{
+			LOGGER.warning(ex.getLocalizedMessage());
+		}
+		clients.forEach(client -> client.connection.close());
+		requests.shutdownNow();
+		waiters.shutdownNow();
+	}
+
+	private class Client
+	{
+		private final Connection connection;
+		//	the ids of queries the client no longer wants the rest of
+		private final Set<Long> cancelled = ConcurrentHashMap.newKeySet();
+		//	the number of chunks each streaming query may send before the client has read them
+		private final Map<Long, Semaphore> credits = new ConcurrentHashMap<>();
+		private final List<IStorageListener> listeners = new ArrayList<>();
+		private final List<IStorageEventListener> eventListeners = new ArrayList<>();
+		//	only touched on the reader thread
+		private boolean authenticated = token == null;
+		//	the last operation to be started -- starting one can block (e.g. until its account is online), so
+		//	operations are started off the reader thread, each after the one before it
+		private CompletableFuture<Void> started = CompletableFuture.completedFuture(null);
+
+		Client(Connection connection)
+		{
+			this.connection = connection;
+			if (!authenticated)
+			{
+				connection.setMaxPayload(Wire.MAX_AUTH_PAYLOAD);
+			}
+		}
+
+		void start()
+		{
+			connection.start(this::handle, this::closed);
+		}
+
+		//	called on the connection's reader thread, so hand the real work off
+
+		private void handle(Frame frame)
+		{
+			if (!authenticated)
+			{
+				authenticate(frame);
+				return;
+			}
+
+			switch (frame.type)
+			{
+				case Wire.CANCEL:
+					cancelled.add(frame.id);
+					//	wake the query up if it is waiting for credit
+					release(frame.id);
+					return;
+				case Wire.CREDIT:
+					release(frame.id);
+					return;
+				case Wire.DO_OPERATION:
+				case Wire.MOVE_TO_JUNK:
+				case Wire.COPY_MESSAGES:
+					started = started.thenRunAsync(() -> {
+						try
+						{
+							whenDone(frame, start(frame));
+						}
+						catch (Exception ex)
+						{
+							fail(frame, ex);
+						}
+					}, requests);
+					return;
+				default:
+					requests.execute(() -> {
+						try
+						{
+							respond(frame);
+							handled.incrementAndGet();
+						}
+						catch (Exception ex)
+						{
+							fail(frame, ex);
+						}
+					});
+			}
+		}
+
+		//	the first frame from a client that needs a token must carry the token, otherwise the client goes
+
+		private void authenticate(Frame frame)
+		{
+			try
+			{
+				if (frame.type == Wire.AUTH
+						&& MessageDigest.isEqual(token, frame.in().string().getBytes(StandardCharsets.UTF_8)))
+				{
+					authenticated = true;
+					connection.setMaxPayload(Wire.MAX_PAYLOAD);
+					send(new Frame(Wire.DONE, frame.id, Wire.payload(out -> out.string(null))));
+					return;
+				}
+			}
+			catch (IOException ex)
+			{
+				//	a broken AUTH frame is as good as none
+			}
+
+			LOGGER.log(Level.WARNING, "{0} :: failed to authenticate", connection);
+			connection.close();
+		}
+
+		private void fail(Frame frame, Throwable ex)
+		{
+			failed.incrementAndGet();
+			var cause = (ex instanceof ExecutionException || ex instanceof CompletionException) && ex.getCause() != null
+					? ex.getCause() : ex;
+			LOGGER.log(Level.INFO, "request {0} failed :: {1}",
+					new Object[]{frame, LoggerUtils.exceptionMessage(cause)});
+			send(new Frame(Wire.ERROR, frame.id, Wire.payload(out -> out.string(String.valueOf(cause.getMessage())))));
+		}
+
+		private Future<?> start(Frame frame) throws Exception
+		{
+			var in = frame.in();
+			switch (frame.type)
+			{
+				case Wire.DO_OPERATION:
+					return storage.doOperation(in.model());
+				case Wire.MOVE_TO_JUNK:
+					return storage.moveMessagesToJunk(in.string(), in.string(), in.strings(), in.string(),
+							in.readBoolean());
+				case Wire.COPY_MESSAGES:
+					return storage.copyMessages(in.string(), in.string(), in.strings(), in.string(),
+							in.readBoolean());
+				default:
+					throw new StorageException("Unknown operation " + frame.type);
+			}
+		}
+
+		private void respond(Frame frame) throws Exception
+		{
+			var in = frame.in();
+			switch (frame.type)
+			{
+				case Wire.QUERY:
+					query(frame.id, in.string());
+					break;
+				case Wire.GET_CONTENT:
+					var content = storage.getContent(in.string());
+					if (content.remaining() > Wire.MAX_PAYLOAD)
+					{
+						throw new StorageException("Content too large to send :: " + content.remaining());
+					}
+					var bytes = new byte[content.remaining()];
+					content.get(bytes);
+					send(new Frame(Wire.CONTENT, frame.id, bytes));
+					break;
+				case Wire.SUBSCRIBE:
+					subscribe(frame.id, in.readByte());
+					break;
+				default:
+					throw new StorageException("Unknown request " + frame.type);
+			}
+		}
+
+		//	tell the client when an operation is done -- without holding a thread for it if the operation can tell
+		//	us when it is done, otherwise on one of a bounded number of threads
+
+		private void whenDone(Frame frame, Future<?> operation)
+		{
+			if (operation instanceof CompletableFuture)
+			{
+				((CompletableFuture<?>) operation).whenComplete((result, ex) -> {
+					if (ex == null)
+					{
+						done(frame.id, result);
+					}
+					else
+					{
+						fail(frame, ex);
+					}
+				});
+			}
+			else
+			{
+				waiters.execute(() -> {
+					try
+					{
+						done(frame.id, operation.get());
+					}
+					catch (Exception ex)
+					{
+						fail(frame, ex);
+					}
+				});
+			}
+		}
+
+		//	the result is sent if it is a string (e.g. the blob id of a fetched attachment)
+
+		private void done(long id, Object result)
+		{
+			handled.incrementAndGet();
+			send(new Frame(Wire.DONE, id, Wire.payload(out -> out.string(result instanceof String ? (String) result : null))));
+		}
+
+		//	stream the solutions of a query a chunk at a time, never more than a window ahead of what the client
+		//	has read -- the client can cancel the rest of the stream
+
+		private void query(long id, String query) throws Exception
+		{
+			var credit = new Semaphore(Wire.CURSOR_WINDOW);
+			credits.put(id, credit);
+			try (var cursor = storage.cursor(query))
+			{
+				var vars = cursor.getResultVars();
+				var chunk = new ArrayList<QuerySolution>(Wire.ROWS_PER_FRAME);
+				boolean sent = false;
+				//	stop if the client cancels, or has gone away
+				while (cursor.hasNext() && !cancelled.contains(id) && connection.isOpen())
+				{
+					chunk.add(cursor.next());
+					if (chunk.size() == Wire.ROWS_PER_FRAME)
+					{
+						if (!awaitCredit(id, credit))
+						{
+							break;
+						}
+						send(new Frame(Wire.ROWS, id, Wire.payload(out -> out.rows(vars, chunk))));
+						chunk.clear();
+						sent = true;
+					}
+				}
+				//	always send at least one chunk, so the client gets the variables
+				if ((!chunk.isEmpty() || !sent) && awaitCredit(id, credit))
+				{
+					send(new Frame(Wire.ROWS, id, Wire.payload(out -> out.rows(vars, chunk))));
+				}
+			}
+			finally
+			{
+				credits.remove(id);
+				cancelled.remove(id);
+			}
+
+			send(new Frame(Wire.END, id));
+		}
+
+		//	wait until the client has room for another chunk -- false if it cancels or goes away first
+
+		private boolean awaitCredit(long id, Semaphore credit) throws InterruptedException
+		{
+			while (!credit.tryAcquire(100, TimeUnit.MILLISECONDS))
+			{
+				if (cancelled.contains(id) || !connection.isOpen())
+				{
+					return false;
+				}
+			}
+			return !cancelled.contains(id) && connection.isOpen();
+		}
+
+		private void release(long id)
+		{
+			var credit = credits.get(id);
+			if (credit != null)
+			{
+				credit.release();
+			}
+		}
+
+		private void subscribe(long id, byte kind) throws StorageException
+		{
+			if (kind == Wire.MODEL_FEED)
+			{
+				IStorageListener listener = model -> push(Wire.EVENT_MODEL, id, model, null);
+				synchronized (this)
+				{
+					listeners.add(listener);
+				}
+				storage.addListener(listener);
+			}
+			else
+			{
+				IStorageEventListener listener = events -> push(Wire.EVENTS, id, null, events);
+				synchronized (this)
+				{
+					eventListeners.add(listener);
+				}
+				storage.addListener(listener);
+			}
+
+			send(new Frame(Wire.DONE, id, Wire.payload(out -> out.string(null))));
+		}
+
+		private void push(byte type, long id, Model model, List<StorageEvent> events)
+		{
+			if (connection.isOpen())
+			{
+				send(new Frame(type, id, Wire.payload(out -> {
+					if (model != null)
+					{
+						out.model(model);
+					}
+					else
+					{
+						out.events(events);
+					}
+				})));
+			}
+		}
+
+		private void send(Frame frame)
+		{
+			try
+			{
+				connection.send(frame);
+			}
+			catch (IOException ex)
+			{
+				//	the client has gone, and closing the connection cleans up
+				LOGGER.log(Level.FINE, "send failed :: {0}", ex.getLocalizedMessage());
+			}
+		}
+
+		private synchronized void closed()
+		{
+			clients.remove(this);
+			listeners.forEach(storage::removeListener);
+			eventListeners.forEach(storage::removeListener);
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "StorageServer{" +
+				"address=" + address +
+				", clients=" + clients.size() +
+				", connections=" + connections.get() +
+				", handled=" + handled.get() +
+				", failed=" + failed.get() +
+				'}';
+	}
+}
@@ -7,7 +7,6 @@ import org.apache.jena.query.ReadWrite;
 import org.apache.jena.query.ResultSet;
 import org.apache.jena.query.ResultSetFactory;
 import org.apache.jena.rdf.model.Model;
-import org.apache.jena.rdf.model.ModelFactory;
 import org.knowtiphy.babbage.storage.exceptions.NoOperationSpecifiedException;
 import org.knowtiphy.babbage.storage.exceptions.StorageException;
 import org.knowtiphy.utils.IProcedure;
@@ -33,17 +32,19 @@ public abstract class BaseAdapter implements IAdapter
 	protected String id;
 	protected final String type;
 	protected final Dataset cache;
+	protected final BlobStore blobs;
 
 	private final ListenerManager listenerManager;
 	private final BlockingDeque<Runnable> notificationQ;
 
 	protected final Map<String, BiFunction<String, Model, Future<?>>> operations = new HashMap<>();
 
-	public BaseAdapter(String type, Dataset cache, ListenerManager newListenerManager,
+	public BaseAdapter(String type, Dataset cache, BlobStore blobs, ListenerManager newListenerManager,
 					   BlockingDeque<Runnable> notificationQ)
 	{
 		this.type = type;
 		this.cache = cache;
+		this.blobs = blobs;
 		this.listenerManager = newListenerManager;
 		this.notificationQ = notificationQ;
 	}
@@ -72,9 +73,9 @@ public abstract class BaseAdapter implements IAdapter
 		return op.apply(oid, operation);
 	}
 
-	protected void notifyListeners(Model change)
+	protected void notifyListeners(EventSetBuilder events)
 	{
-		notificationQ.add(() -> listenerManager.notifyListeners(change));
+		notificationQ.add(() -> listenerManager.notifyListeners(events));
 	}
 
 	protected Delta getDelta()
@@ -85,22 +86,22 @@ public abstract class BaseAdapter implements IAdapter
 	protected void applyAndNotify(Delta delta, EventSetBuilder builder)
 	{
 		delta.apply();
-		notifyListeners(builder.model);
+		notifyListeners(builder);
 	}
 
-	//	run a string query inside a read transaction on the data set
+	//	run a string query inside a read transaction on the data set.
+	//	note: the query runs directly against the data set -- the rdf:type triples implied by sub-classing are
+	//	materialized in the data set (see Delta), so there is no need for an RDFS model
 
 	public static ResultSet query(Dataset dataset, String query) throws StorageException
 	{
-		var infModel = ModelFactory.createRDFSModel(dataset.getDefaultModel());
-
 		dataset.begin(ReadWrite.READ);
 		try
 		{
 			//	TODO -- This code runs the query, copies the result into an in memory result set,
 			//	and then closes the original query execution context to free server resources
 			//	longer term we need a better solution than the copy part
-			try (QueryExecution qexec = QueryExecutionFactory.create(query, infModel))
+			try (QueryExecution qexec = QueryExecutionFactory.create(query, dataset.getDefaultModel()))
 			{
 				ResultSet results = qexec.execSelect();
 				return ResultSetFactory.copyResults(results);
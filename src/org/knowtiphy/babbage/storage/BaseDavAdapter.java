@@ -53,10 +53,10 @@ public abstract class BaseDavAdapter extends BaseAdapter
 	protected String nickName;
 	//private final Thread doWork;
 
-	public BaseDavAdapter(String name, String type, Dataset messageDatabase, ListenerManager listenerManager,
-						  BlockingDeque<Runnable> notificationQ, Model model)
+	public BaseDavAdapter(String name, String type, Dataset messageDatabase, BlobStore blobs,
+						  ListenerManager listenerManager, BlockingDeque<Runnable> notificationQ, Model model)
 	{
-		super(type, messageDatabase, listenerManager, notificationQ);
+		super(type, messageDatabase, blobs, listenerManager, notificationQ);
 
 		// query for serverName, emailAdress, and password in the configuration model passed in
 
@@ -0,0 +1,176 @@
+package org.knowtiphy.babbage.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.logging.Logger;
+
+/**
+ * A content addressed store for large binary content (message attachments, CID parts, etc) kept on the local
+ * file system next to the cache, so the cache only has to hold a reference to the content and its size.
+ * Blobs are keyed by the SHA-256 of their content, so identical content is only ever stored once, no matter
+ * how many messages, folders or accounts it turns up in.
+ *
+ * @author graham
+ */
+public class BlobStore
+{
+	private static final Logger LOGGER = Logger.getLogger(BlobStore.class.getName());
+
+	private static final String DIGEST = "SHA-256";
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	//	the length of a hash in hex digits
+	private static final int HASH_LENGTH = 64;
+
+	private final Path root;
+
+	public BlobStore(Path root) throws IOException
+	{
+		this.root = root;
+		Files.createDirectories(root);
+	}
+
+	//	store some content and return the id of its blob
+
+	public String put(byte[] content) throws IOException
+	{
+		return put(new ByteArrayInputStream(content));
+	}
+
+	//	store the content of a stream, without ever holding the whole content in memory, and return the
+	//	id of its blob
+
+	public String put(InputStream content) throws IOException
+	{
+		var tmp = Files.createTempFile(root, "blob", ".tmp");
+		try
+		{
+			var digest = digest();
+			try (OutputStream out = new DigestOutputStream(Files.newOutputStream(tmp), digest))
+			{
+				content.transferTo(out);
+			}
+
+			var hash = hex(digest.digest());
+			var target = path(hash);
+			if (!Files.exists(target))
+			{
+				Files.createDirectories(target.getParent());
+				try
+				{
+					Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+				}
+				catch (FileAlreadyExistsException ex)
+				{
+					//	someone else stored the same content while we were writing it
+				}
+			}
+
+			return Vocabulary.E(Vocabulary.BLOB, hash);
+		}
+		finally
+		{
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	//	get the content of a blob -- the content is memory mapped, not read into memory
+
+	public ByteBuffer get(String blobId) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(path(checkedHash(blobId)), StandardOpenOption.READ))
+		{
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+	public long size(String blobId) throws IOException
+	{
+		return Files.size(path(checkedHash(blobId)));
+	}
+
+	public boolean contains(String blobId)
+	{
+		var hash = hash(blobId);
+		return isHash(hash) && Files.exists(path(hash));
+	}
+
+	//	fan the blobs out over sub-directories so no directory gets too big
+
+	private Path path(String hash)
+	{
+		return root.resolve(hash.substring(0, 2)).resolve(hash.substring(2));
+	}
+
+	private static String hash(String blobId)
+	{
+		int l = blobId.lastIndexOf("/");
+		return blobId.substring(l + 1);
+	}
+
+	//	blob ids can come from clients, so only ever resolve something that is exactly a hash -- anything else
+	//	could name a file outside the store
+
+	private static String checkedHash(String blobId) throws IOException
+	{
+		var hash = hash(blobId);
+		if (!isHash(hash))
+		{
+			throw new IOException("Not a blob id :: " + blobId);
+		}
+		return hash;
+	}
+
+	private static boolean isHash(String hash)
+	{
+		if (hash.length() != HASH_LENGTH)
+		{
+			return false;
+		}
+		for (int i = 0; i < HASH_LENGTH; i++)
+		{
+			char c = hash.charAt(i);
+			if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f')))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static MessageDigest digest()
+	{
+		try
+		{
+			return MessageDigest.getInstance(DIGEST);
+		}
+		catch (NoSuchAlgorithmException ex)
+		{
+			//	every JVM has to support SHA-256
+			LOGGER.severe(ex.getLocalizedMessage());
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private static String hex(byte[] bytes)
+	{
+		var chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++)
+		{
+			chars[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+			chars[2 * i + 1] = HEX[bytes[i] & 0xF];
+		}
+		return new String(chars);
+	}
+}
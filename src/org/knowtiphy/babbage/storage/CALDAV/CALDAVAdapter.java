@@ -17,6 +17,7 @@ import org.apache.jena.rdf.model.Model;
 import org.apache.jena.vocabulary.RDF;
 import org.knowtiphy.babbage.Babbage;
 import org.knowtiphy.babbage.storage.BaseDavAdapter;
+import org.knowtiphy.babbage.storage.BlobStore;
 import org.knowtiphy.babbage.storage.Delta;
 import org.knowtiphy.babbage.storage.EventSetBuilder;
 import org.knowtiphy.babbage.storage.ListenerManager;
@@ -39,9 +40,9 @@ import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.concurrent.BlockingDeque;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
-import java.util.concurrent.FutureTask;
 import java.util.function.Function;
 import java.util.logging.Logger;
 
@@ -73,10 +74,10 @@ public class CALDAVAdapter extends BaseDavAdapter
 	protected final Map<String, DavResource> calendars = new HashMap<>(10);
 	protected final Map<String, Map<String, DavResource>> events = new HashMap<>(1000);
 
-	public CALDAVAdapter(String name, String type, Dataset messageDatabase,
+	public CALDAVAdapter(String name, String type, Dataset messageDatabase, BlobStore blobs,
 						 ListenerManager listenerManager, BlockingDeque<Runnable> notificationQ, Model model)
 	{
-		super(name, type, messageDatabase, listenerManager, notificationQ, model);
+		super(name, type, messageDatabase, blobs, listenerManager, notificationQ, model);
 		operations.put(Vocabulary.ADD_CALDAV_EVENT, this::toServer);
 	}
 
@@ -97,8 +98,8 @@ public class CALDAVAdapter extends BaseDavAdapter
 	{
 		super.initialize(syncs, delta);
 		syncs.put(Vocabulary.CALDAV_ACCOUNT, this::syncAccount);
-		syncs.put(Vocabulary.CALDAV_CALENDAR, (x) -> new FutureTask<>(() -> true));
-		syncs.put(Vocabulary.CALDAV_EVENT, (x) -> new FutureTask<>(() -> true));
+		syncs.put(Vocabulary.CALDAV_CALENDAR, (x) -> CompletableFuture.completedFuture(true));
+		syncs.put(Vocabulary.CALDAV_EVENT, (x) -> CompletableFuture.completedFuture(true));
 	}
 
 	protected Future<?> syncAccount(String aid)
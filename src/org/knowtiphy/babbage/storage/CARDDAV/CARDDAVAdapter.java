@@ -3,16 +3,17 @@ package org.knowtiphy.babbage.storage.CARDDAV;
 import org.apache.jena.query.Dataset;
 import org.apache.jena.rdf.model.Model;
 import org.knowtiphy.babbage.storage.BaseDavAdapter;
+import org.knowtiphy.babbage.storage.BlobStore;
 import org.knowtiphy.babbage.storage.ListenerManager;
 
 import java.util.concurrent.BlockingDeque;
 
 public abstract class CARDDAVAdapter extends BaseDavAdapter
 {
-	public CARDDAVAdapter(String name, String type, Dataset messageDatabase,
+	public CARDDAVAdapter(String name, String type, Dataset messageDatabase, BlobStore blobs,
 						  ListenerManager listenerManager, BlockingDeque<Runnable> notificationQ, Model model)
 	{
-		super(name, type, messageDatabase, listenerManager, notificationQ, model);
+		super(name, type, messageDatabase, blobs, listenerManager, notificationQ, model);
 	}
 
 	@Override
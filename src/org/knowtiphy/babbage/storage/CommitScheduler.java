@@ -0,0 +1,308 @@
+package org.knowtiphy.babbage.storage;
+
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.ReadWrite;
+import org.knowtiphy.utils.LoggerUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Group commit for deltas -- deltas applied from any number of threads are queued, and a single committer thread
+ * collects them for up to a few milliseconds (or until it has enough triples), applies them all, in order, in one
+ * write transaction, and then completes the future of each delta. So a burst of small changes (e.g. a storm of
+ * flag changes from the server) costs one commit rather than one per change.
+ *
+ * @author graham
+ */
+public class CommitScheduler
+{
+	private static final Logger LOGGER = Logger.getLogger(CommitScheduler.class.getName());
+
+	//	how long to wait for more deltas once we have one, and the most triples to commit in one go
+	private static final long MAX_DELAY_MICROS = Long.getLong("babbage.commitDelayMicros", 5000);
+	private static final int MAX_TRIPLES = Integer.getInteger("babbage.commitMaxTriples", 50000);
+
+	private static final Map<Dataset, CommitScheduler> schedulers = new ConcurrentHashMap<>();
+	//	data sets whose scheduler has been closed -- they must not get a new one
+	private static final Set<Dataset> closedDataSets = ConcurrentHashMap.newKeySet();
+	//	queued to stop the committer -- interrupting it instead could interrupt the data set's file I/O mid commit
+	private static final Pending STOP = new Pending(null);
+
+	private final Dataset dataSet;
+	private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+	private final Thread committer;
+	private volatile boolean closed = false;
+
+	//	metrics
+	private final AtomicLong commits = new AtomicLong();
+	private final AtomicLong deltas = new AtomicLong();
+	private final AtomicLong triples = new AtomicLong();
+	private final AtomicLong totalLatency = new AtomicLong();
+	private final AtomicLong maxLatency = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong avoided = new AtomicLong();
+
+	private CommitScheduler(Dataset dataSet)
+	{
+		this.dataSet = dataSet;
+		committer = new Thread(this::run, "commit-scheduler");
+		committer.setDaemon(true);
+		committer.start();
+	}
+
+	//	get the scheduler for a data set, creating it if needed
+
+	public static CommitScheduler of(Dataset dataSet)
+	{
+		var scheduler = schedulers.computeIfAbsent(dataSet,
+				ds -> closedDataSets.contains(ds) ? null : new CommitScheduler(ds));
+		if (scheduler == null)
+		{
+			throw new IllegalStateException("Commit scheduler for the data set has been closed");
+		}
+		return scheduler;
+	}
+
+	//	commit anything still queued for a data set and stop its scheduler
+
+	public static void close(Dataset dataSet)
+	{
+		closedDataSets.add(dataSet);
+		var scheduler = schedulers.remove(dataSet);
+		if (scheduler != null)
+		{
+			scheduler.close();
+		}
+	}
+
+	//	queue a delta to be committed -- the future completes when it has been committed
+
+	Future<?> submit(Delta delta)
+	{
+		var pending = new Pending(delta);
+		queue.add(pending);
+		//	closed while we were queueing, so the committer may be gone -- commit it (and anything else left) here
+		if (closed)
+		{
+			var rest = new ArrayList<Pending>();
+			queue.drainTo(rest);
+			//	leave the committer its stop
+			if (rest.remove(STOP))
+			{
+				queue.add(STOP);
+			}
+			if (!rest.isEmpty())
+			{
+				commit(rest);
+			}
+		}
+		return pending.future;
+	}
+
+	private void close()
+	{
+		closed = true;
+		queue.add(STOP);
+		try
+		{
+			committer.join();
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		//	anything that got queued while we were closing
+		var rest = new ArrayList<Pending>();
+		queue.drainTo(rest);
+		rest.remove(STOP);
+		if (!rest.isEmpty())
+		{
+			commit(rest);
+		}
+
+		LOGGER.log(Level.INFO, "{0}", this);
+	}
+
+	private void run()
+	{
+		var batch = new ArrayList<Pending>();
+		boolean stopping = false;
+		while (!stopping)
+		{
+			try
+			{
+				var first = queue.take();
+				if (first == STOP)
+				{
+					break;
+				}
+				batch.add(first);
+				long size = first.delta.size();
+				long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(MAX_DELAY_MICROS);
+				while (size < MAX_TRIPLES)
+				{
+					var next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+					if (next == null)
+					{
+						break;
+					}
+					if (next == STOP)
+					{
+						//	commit what we have, then stop
+						stopping = true;
+						break;
+					}
+					batch.add(next);
+					size += next.delta.size();
+				}
+			}
+			catch (InterruptedException ex)
+			{
+				//	nothing should interrupt the committer -- commit what we have (the interrupt is now cleared) and
+				//	carry on until we are stopped
+				LOGGER.warning("commit scheduler interrupted");
+			}
+
+			if (!batch.isEmpty())
+			{
+				commit(batch);
+				batch.clear();
+			}
+		}
+	}
+
+	private void commit(List<Pending> batch)
+	{
+		dataSet.begin(ReadWrite.WRITE);
+		try
+		{
+			//	compact the deltas, in the order they were submitted since later ones may undo earlier ones, and
+			//	only write the net change
+			var compactor = new DeltaCompactor(dataSet.getDefaultModel().getGraph());
+			for (Pending pending : batch)
+			{
+				compactor.add(pending.delta);
+			}
+			compactor.write();
+			dataSet.commit();
+			avoided.addAndGet(compactor.getSubmitted() - compactor.getWritten());
+		}
+		catch (Exception ex)
+		{
+			LOGGER.severe(LoggerUtils.exceptionMessage(ex));
+			dataSet.abort();
+			dataSet.end();
+			if (batch.size() > 1)
+			{
+				//	don't let one bad delta lose the others -- commit them one by one
+				batch.forEach(pending -> commit(List.of(pending)));
+			}
+			else
+			{
+				failures.incrementAndGet();
+				batch.get(0).future.completeExceptionally(ex);
+			}
+			return;
+		}
+
+		dataSet.end();
+
+		long now = System.nanoTime();
+		commits.incrementAndGet();
+		deltas.addAndGet(batch.size());
+		for (Pending pending : batch)
+		{
+			long latency = now - pending.submitted;
+			totalLatency.addAndGet(latency);
+			maxLatency.accumulateAndGet(latency, Math::max);
+			triples.addAndGet(pending.delta.size());
+			pending.future.complete(null);
+		}
+	}
+
+	public long getCommitCount()
+	{
+		return commits.get();
+	}
+
+	public long getDeltaCount()
+	{
+		return deltas.get();
+	}
+
+	public long getTripleCount()
+	{
+		return triples.get();
+	}
+
+	public long getFailureCount()
+	{
+		return failures.get();
+	}
+
+	//	the number of triple writes compaction found were not needed
+
+	public long getWritesAvoided()
+	{
+		return avoided.get();
+	}
+
+	//	the mean and max time from a delta being submitted to it being committed
+
+	public double getMeanLatencyMillis()
+	{
+		long n = deltas.get();
+		return n == 0 ? 0 : totalLatency.get() / (n * 1e6);
+	}
+
+	public double getMaxLatencyMillis()
+	{
+		return maxLatency.get() / 1e6;
+	}
+
+	public double getDeltasPerCommit()
+	{
+		long n = commits.get();
+		return n == 0 ? 0 : (double) deltas.get() / n;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "CommitScheduler{" +
+				"commits=" + getCommitCount() +
+				", deltas=" + getDeltaCount() +
+				", triples=" + getTripleCount() +
+				", failures=" + getFailureCount() +
+				", writesAvoided=" + getWritesAvoided() +
+				", deltasPerCommit=" + getDeltasPerCommit() +
+				", meanLatencyMillis=" + getMeanLatencyMillis() +
+				", maxLatencyMillis=" + getMaxLatencyMillis() +
+				'}';
+	}
+
+	private static class Pending
+	{
+		final Delta delta;
+		final long submitted = System.nanoTime();
+		final CompletableFuture<Void> future = new CompletableFuture<>();
+
+		Pending(Delta delta)
+		{
+			this.delta = delta;
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package org.knowtiphy.babbage.storage;
+
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.query.ReadWrite;
+import org.apache.jena.query.ResultSet;
+import org.knowtiphy.babbage.storage.exceptions.StorageException;
+import org.knowtiphy.utils.LoggerUtils;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.logging.Logger;
+
+/**
+ * A cursor over the solutions of a select query, streamed straight out of a read transaction on the data set
+ * rather than copied into memory first. The read transaction stays open until the cursor is closed, and -- since
+ * transactions belong to threads -- the cursor must be used and closed on the thread that created it.
+ *
+ * @author graham
+ */
+public class DatasetQueryCursor implements QueryCursor
+{
+	private static final Logger LOGGER = Logger.getLogger(DatasetQueryCursor.class.getName());
+
+	private final Dataset dataset;
+	private final QueryExecution qexec;
+	private final ResultSet results;
+	private boolean closed = false;
+
+	public DatasetQueryCursor(Dataset dataset, String query) throws StorageException
+	{
+		this.dataset = dataset;
+		dataset.begin(ReadWrite.READ);
+		try
+		{
+			qexec = QueryExecutionFactory.create(query, dataset.getDefaultModel());
+			results = qexec.execSelect();
+		}
+		catch (Exception ex)
+		{
+			dataset.abort();
+			dataset.end();
+			LOGGER.severe(LoggerUtils.exceptionMessage(ex));
+			throw new StorageException(ex);
+		}
+	}
+
+	@Override
+	public List<String> getResultVars()
+	{
+		return results.getResultVars();
+	}
+
+	@Override
+	public boolean hasNext()
+	{
+		return !closed && results.hasNext();
+	}
+
+	@Override
+	public QuerySolution next()
+	{
+		if (closed)
+		{
+			throw new NoSuchElementException();
+		}
+		return results.next();
+	}
+
+	@Override
+	public void close()
+	{
+		if (!closed)
+		{
+			closed = true;
+			try
+			{
+				qexec.close();
+			}
+			finally
+			{
+				dataset.end();
+			}
+		}
+	}
+}
@@ -1,15 +1,18 @@
 package org.knowtiphy.babbage.storage;
 
 import org.apache.jena.query.Dataset;
-import org.apache.jena.query.ReadWrite;
+import org.apache.jena.graph.Triple;
 import org.apache.jena.rdf.model.Model;
-import org.apache.jena.rdf.model.ModelFactory;
 import org.apache.jena.rdf.model.StmtIterator;
+import org.apache.jena.vocabulary.RDF;
 import org.knowtiphy.utils.JenaUtils;
 import org.knowtiphy.utils.LoggerUtils;
 
 import java.io.StringWriter;
 import java.util.Collection;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 /**
@@ -21,96 +24,123 @@ public class Delta
 
 	private final Dataset dataSet;
 
-	//	the added and deleted triples for the delta
+	//	the added and deleted triples for the delta, sharing one table of terms
 
-	private final Model adds = ModelFactory.createDefaultModel();
-	private final Model deletes = ModelFactory.createDefaultModel();
+	private final TripleBuffer.Terms terms = new TripleBuffer.Terms();
+	private final TripleBuffer adds = new TripleBuffer(terms);
+	private final TripleBuffer deletes = new TripleBuffer(terms);
 
 	public Delta(Dataset dataSet)
 	{
 		this.dataSet = dataSet;
 	}
 
+	//	copies of the added and deleted triples as models
+
 	public Model getAdds()
 	{
-		return adds;
+		return adds.toModel();
 	}
 
 	public Model getDeletes()
 	{
-		return deletes;
+		return deletes.toModel();
+	}
+
+	void forEachAdd(Consumer<Triple> action)
+	{
+		adds.forEach(action);
+	}
+
+	void forEachDelete(Consumer<Triple> action)
+	{
+		deletes.forEach(action);
+	}
+
+	private void addOP(TripleBuffer buffer, String s, String p, String o)
+	{
+		buffer.add(terms.uri(s), terms.uri(p), terms.uri(o));
+	}
+
+	//	note: a null value is ignored, rather than being an error
+	private void addDP(TripleBuffer buffer, String s, String p, Object o)
+	{
+		if (o != null)
+		{
+			buffer.add(terms.uri(s), terms.uri(p), terms.literal(o));
+		}
 	}
 
 	public Delta addType(String s, String type)
 	{
-		JenaUtils.addType(adds, s, type);
+		addOP(adds, s, RDF.type.getURI(), type);
 		return this;
 	}
 
 	public Delta addOP(String s, String p, String o)
 	{
-		JenaUtils.addOP(adds, s, p, o);
+		addOP(adds, s, p, o);
 		return this;
 	}
 
 	public <T> Delta addDP(String s, String p, T o)
 	{
-		JenaUtils.addDP(adds, s, p, o);
+		addDP(adds, s, p, o);
 		return this;
 	}
 
 	public Delta add(StmtIterator stmts)
 	{
-		adds.add(stmts);
+		stmts.forEachRemaining(stmt -> adds.add(stmt.asTriple()));
 		return this;
 	}
 
 	public Delta add(Model model)
 	{
-		adds.add(model);
+		model.getGraph().find().forEachRemaining(adds::add);
 		return this;
 	}
 
 	public Delta delete(StmtIterator stmts)
 	{
-		deletes.add(stmts);
+		stmts.forEachRemaining(stmt -> deletes.add(stmt.asTriple()));
 		return this;
 	}
 
 	public Delta deleteOP(String s, String p, String o)
 	{
-		JenaUtils.addOP(deletes, s, p, o);
+		addOP(deletes, s, p, o);
 		return this;
 	}
 
 	//	TODO -- check this is right (trying to ensure they are only in the dbase once)
 	public Delta bothOP(String s, String p, String o)
 	{
-		JenaUtils.addOP(deletes, s, p, o);
-		JenaUtils.addOP(adds, s, p, o);
+		addOP(deletes, s, p, o);
+		addOP(adds, s, p, o);
 		return this;
 	}
 
 	//	TODO -- check this is right (trying to ensure they are only in the dbase once)
 	public Delta bothDP(String s, String p, String o)
 	{
-		JenaUtils.addDP(deletes, s, p, o);
-		JenaUtils.addDP(adds, s, p, o);
+		addDP(deletes, s, p, o);
+		addDP(adds, s, p, o);
 		return this;
 	}
 
 	public Delta bothDPN(String s, String p, String o)
 	{
-		JenaUtils.addDPN(deletes, s, p, o);
-		JenaUtils.addDPN(adds, s, p, o);
+		addDP(deletes, s, p, o);
+		addDP(adds, s, p, o);
 		return this;
 	}
 
 	public String toString()
 	{
 		StringWriter sw = new StringWriter();
-		JenaUtils.printModel(adds, "+", sw);
-		JenaUtils.printModel(deletes, "-", sw);
+		JenaUtils.printModel(adds.toModel(), "+", sw);
+		JenaUtils.printModel(deletes.toModel(), "-", sw);
 		return sw.toString();
 	}
 
@@ -118,34 +148,83 @@ public class Delta
 	{
 		var merged = new Delta(dSet);
 		deltas.forEach(d -> {
-			merged.adds.add(d.adds);
-			merged.deletes.add(d.deletes);
+			d.adds.forEach(merged.adds::add);
+			d.deletes.forEach(merged.deletes::add);
 		});
 
 		return merged;
 	}
 
-	//	apply the change represented by the delta
+	//	add the rdf:type triples implied by the sub-class structure of the vocabulary for the typed resources in
+	//	the adds.
+	//	note: there is no need to do this for deletes, as we only ever delete types by deleting whole resources
+
+	private void addSuperTypes()
+	{
+		var type = terms.uri(RDF.type.getURI());
+		//	only look at the triples that were there to start with
+		for (int i = 0, n = adds.size(); i < n; i++)
+		{
+			if (adds.predicate(i) == type)
+			{
+				var object = terms.getURI(adds.object(i));
+				var sups = object == null ? null : Vocabulary.allSuperClasses.get(object);
+				if (sups != null)
+				{
+					for (String sup : sups)
+					{
+						adds.add(adds.subject(i), type, terms.uri(sup));
+					}
+				}
+			}
+		}
+	}
+
+	//	the number of triples in the delta
+	long size()
+	{
+		return adds.size() + deletes.size();
+	}
+
+	//	queue the change represented by the delta to be committed with any other changes being applied at the
+	//	same time -- the future completes when the change has been committed
+
+	public Future<?> applyAsync()
+	{
+		addSuperTypes();
+		return CommitScheduler.of(dataSet).submit(this);
+	}
+
+	//	apply the change represented by the delta, waiting until it has been committed -- throws whatever made the
+	//	commit fail
 
 	public void apply()
 	{
-		dataSet.begin(ReadWrite.WRITE);
 		try
 		{
-			//	do deletes before adds in case adds are replacing things that are being deleted
-			dataSet.getDefaultModel().remove(getDeletes());
-			dataSet.getDefaultModel().add(getAdds());
-			dataSet.commit();
+			applyAsync().get();
 		}
-		catch (Exception ex)
+		catch (InterruptedException ex)
 		{
-			//	if this happens were are in deep shit with no real way of recovering
-			LOGGER.severe(LoggerUtils.exceptionMessage(ex));
-			dataSet.abort();
+			//	the change may or may not get committed, but the caller can't carry on as if it had been
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(ex);
 		}
-		finally
+		catch (ExecutionException ex)
 		{
-			dataSet.end();
+			//	if this happens were are in deep shit with no real way of recovering -- but the caller must not carry
+			//	on as if the change had been made
+			LOGGER.severe(LoggerUtils.exceptionMessage(ex));
+			var cause = ex.getCause();
+			if (cause instanceof RuntimeException)
+			{
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error)
+			{
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
 		}
 	}
 }
\ No newline at end of file
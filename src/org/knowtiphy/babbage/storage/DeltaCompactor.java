@@ -0,0 +1,123 @@
+package org.knowtiphy.babbage.storage;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Compacts a sequence of deltas into the net change they make to a graph, so only real changes are written:
+ * triples both deleted and added (e.g. by bothOP/bothDP) that are already in the graph cancel out, and deletes of
+ * triples not in the graph and adds of triples already in the graph are dropped. A predicate that only ever has one
+ * value per subject (e.g. a folder's counts and sync state) takes the last value added for the subject, whatever
+ * values the deltas deleted -- so two deltas built against the same stored value that both replace it leave only
+ * the second one's value. Must be used inside a write transaction on the graph.
+ *
+ * @author graham
+ */
+class DeltaCompactor
+{
+	//	predicates with at most one value per subject
+	private static final Set<Node> SINGLE_VALUED = Stream.of(Vocabulary.HAS_MESSAGE_COUNT,
+			Vocabulary.HAS_UNREAD_MESSAGE_COUNT, Vocabulary.HAS_UID_VALIDITY, Vocabulary.HAS_UID_NEXT,
+			Vocabulary.HAS_HIGHEST_MOD_SEQ, Vocabulary.HAS_SYNC_MESSAGE_COUNT).map(NodeFactory::createURI).collect(Collectors.toSet());
+
+	private final Graph graph;
+	private final Set<Triple> adds = new LinkedHashSet<>();
+	private final Set<Triple> deletes = new LinkedHashSet<>();
+	//	the pending add of each subject and single valued predicate, keyed by (subject, predicate, ANY)
+	private final Map<Triple, Triple> values = new HashMap<>();
+	private long submitted = 0;
+
+	DeltaCompactor(Graph graph)
+	{
+		this.graph = graph;
+	}
+
+	//	add the changes of a delta -- deltas must be added in the order they are to be applied
+
+	void add(Delta delta)
+	{
+		//	a delta does its deletes before its adds
+		delta.forEachDelete(this::delete);
+		delta.forEachAdd(this::add);
+	}
+
+	private void delete(Triple triple)
+	{
+		submitted++;
+		adds.remove(triple);
+		if (SINGLE_VALUED.contains(triple.getPredicate()))
+		{
+			values.remove(key(triple), triple);
+		}
+		if (graph.contains(triple))
+		{
+			deletes.add(triple);
+		}
+	}
+
+	private void add(Triple triple)
+	{
+		submitted++;
+		if (SINGLE_VALUED.contains(triple.getPredicate()))
+		{
+			replace(triple);
+		}
+		deletes.remove(triple);
+		if (!graph.contains(triple))
+		{
+			adds.add(triple);
+		}
+	}
+
+	//	a new value replaces any earlier pending value, and any stored value, of the subject and predicate
+
+	private void replace(Triple triple)
+	{
+		var key = key(triple);
+		var previous = values.put(key, triple);
+		if (previous != null && !previous.equals(triple))
+		{
+			adds.remove(previous);
+		}
+		graph.find(key).forEachRemaining(stored -> {
+			if (!stored.equals(triple))
+			{
+				deletes.add(stored);
+			}
+		});
+	}
+
+	private static Triple key(Triple triple)
+	{
+		return Triple.create(triple.getSubject(), triple.getPredicate(), Node.ANY);
+	}
+
+	//	write the net change into the graph
+
+	void write()
+	{
+		deletes.forEach(graph::delete);
+		adds.forEach(graph::add);
+	}
+
+	//	the number of triple writes asked for, and the number that were actually needed
+
+	long getSubmitted()
+	{
+		return submitted;
+	}
+
+	long getWritten()
+	{
+		return adds.size() + deletes.size();
+	}
+}
@@ -5,46 +5,163 @@ import org.apache.jena.rdf.model.ModelFactory;
 import org.apache.jena.vocabulary.RDF;
 import org.knowtiphy.utils.JenaUtils;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+//	builds a set of events. The events are only turned into an RDF model, or into typed events, when a listener
+//	wants them in that form, so listeners that only want typed events never pay for building a model.
+
 public class EventSetBuilder
 {
-	public Model model = ModelFactory.createDefaultModel();
-	private long ids;
+	//	event ids are unique across builders, so the event sets of different builders can be merged
+	private static final AtomicLong ids = new AtomicLong();
+
+	//	map from event id to the properties of the event
+	private final Map<String, List<Property>> events = new LinkedHashMap<>();
+	private Model model;
 
 	public String newEvent(String type, String aid)
 	{
-		var eid = Vocabulary.E(type, ids + "");
-		ids++;
-		JenaUtils.addOP(model, eid, RDF.type.toString(), type);
+		var eid = newEvent(type);
 		if (aid != null)
 		{
-			JenaUtils.addOP(model, eid, Vocabulary.HAS_ACCOUNT, aid);
+			addOP(eid, Vocabulary.HAS_ACCOUNT, aid);
 		}
 		return eid;
 	}
 
 	public String newEvent(String type)
 	{
-		var eid = Vocabulary.E(type, ids + "");
-		ids++;
-		JenaUtils.addOP(model, eid, RDF.type.toString(), type);
+		var eid = Vocabulary.E(type, ids.getAndIncrement() + "");
+		events.put(eid, new ArrayList<>());
+		addOP(eid, RDF.type.toString(), type);
 		return eid;
 	}
 
 	public EventSetBuilder addOP(String eid, String p, String o)
 	{
-		JenaUtils.addOP(model, eid, p, o);
+		events.get(eid).add(new Property(p, o, true));
 		return this;
 	}
 
 	public <T> EventSetBuilder addDP(String eid, String p, T o)
 	{
-		JenaUtils.addDP(model, eid, p, o);
+		events.get(eid).add(new Property(p, o, false));
 		return this;
 	}
 
+	public boolean isEmpty()
+	{
+		return events.isEmpty();
+	}
+
+	public synchronized Model getModel()
+	{
+		if (model == null)
+		{
+			model = ModelFactory.createDefaultModel();
+			events.forEach((eid, properties) -> properties.forEach(property -> {
+				if (property.resource)
+				{
+					JenaUtils.addOP(model, eid, property.p, (String) property.o);
+				}
+				else
+				{
+					JenaUtils.addDP(model, eid, property.p, property.o);
+				}
+			}));
+		}
+		return model;
+	}
+
+	//	the events that have a typed version
+
+	public List<StorageEvent> getEvents()
+	{
+		var result = new ArrayList<StorageEvent>(events.size());
+		events.values().forEach(properties -> {
+			String type = null, aid = null, fid = null;
+			var mids = new ArrayList<String>();
+			for (Property property : properties)
+			{
+				if (property.p.equals(RDF.type.toString()))
+				{
+					type = (String) property.o;
+				}
+				else if (property.p.equals(Vocabulary.HAS_ACCOUNT))
+				{
+					aid = (String) property.o;
+				}
+				else if (property.p.equals(Vocabulary.HAS_FOLDER))
+				{
+					fid = (String) property.o;
+				}
+				else if (property.p.equals(Vocabulary.HAS_MESSAGE))
+				{
+					mids.add((String) property.o);
+				}
+			}
+
+			var event = typed(type, aid, fid, mids);
+			if (event != null)
+			{
+				result.add(event);
+			}
+		});
+
+		return result;
+	}
+
+	private static StorageEvent typed(String type, String aid, String fid, List<String> mids)
+	{
+		if (Vocabulary.ACCOUNT_ONLINE.equals(type))
+		{
+			return new StorageEvent.AccountOnline(aid);
+		}
+		if (Vocabulary.ACCOUNT_SYNCED.equals(type))
+		{
+			return new StorageEvent.AccountSynced(aid);
+		}
+		if (Vocabulary.FOLDER_SYNCED.equals(type))
+		{
+			return new StorageEvent.FolderSynced(aid, fid);
+		}
+		if (Vocabulary.MESSAGE_ARRIVED.equals(type))
+		{
+			return new StorageEvent.MessageArrived(aid, fid, List.copyOf(mids));
+		}
+		if (Vocabulary.MESSAGE_DELETED.equals(type))
+		{
+			return new StorageEvent.MessageDeleted(aid, fid, List.copyOf(mids));
+		}
+		if (Vocabulary.MESSAGE_FLAGS_CHANGED.equals(type))
+		{
+			return new StorageEvent.FlagsChanged(aid, fid, List.copyOf(mids));
+		}
+		return null;
+	}
+
+	private static final class Property
+	{
+		final String p;
+		final Object o;
+		//	true if o is the URI of a resource, otherwise o is a literal value
+		final boolean resource;
+
+		Property(String p, Object o, boolean resource)
+		{
+			this.p = p;
+			this.o = o;
+			this.resource = resource;
+		}
+	}
+
 	@Override
 	public String toString()
 	{
-		return "EventSetBuilder{" + "model=" + model + "}";
+		return "EventSetBuilder{" + "model=" + getModel() + "}";
 	}
-}
\ No newline at end of file
+}
@@ -29,6 +29,14 @@ public interface IAdapter
 
 	void close(Model model);
 
+	//	the sync to reconcile resources of a type with at startup, if it differs from the sync registered in
+	//	initialize -- nobody has asked for the resource, so it shouldn't count as being used
+
+	default Function<String, Future<?>> getReconcileSync(String type)
+	{
+		return null;
+	}
+
 	Future<?> doOperation(String oid, String type, Model operation) throws NoOperationSpecifiedException;
 
 	//	all this code has to go away
@@ -4,12 +4,15 @@ public class Attachment
 {
 	final String id;
 	final String mimeType;
-	final byte[] content;
+	//	the id of the blob holding the (decoded) content of the attachment, or null if it hasn't been downloaded
+	final String blob;
+	final long size;
 
-	public Attachment(String id, String mimeType, byte[] content)
+	public Attachment(String id, String mimeType, String blob, long size)
 	{
 		this.id = id;
 		this.mimeType = mimeType;
-		this.content = content;
+		this.blob = blob;
+		this.size = size;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,35 @@
+package org.knowtiphy.babbage.storage.IMAP;
+
+//	where the content of an attachment lives -- on the server, in the given section of a message, and, once it has
+//	been downloaded, in the blob store
+
+public class AttachmentLocation
+{
+	final String folderId;
+	final String messageId;
+	final String section;
+	final String encoding;
+	//	null if the attachment hasn't been downloaded
+	final String blob;
+
+	public AttachmentLocation(String folderId, String messageId, String section, String encoding, String blob)
+	{
+		this.folderId = folderId;
+		this.messageId = messageId;
+		this.section = section;
+		this.encoding = encoding;
+		this.blob = blob;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "AttachmentLocation{" +
+				"folderId='" + folderId + '\'' +
+				", messageId='" + messageId + '\'' +
+				", section='" + section + '\'' +
+				", encoding='" + encoding + '\'' +
+				", blob='" + blob + '\'' +
+				'}';
+	}
+}
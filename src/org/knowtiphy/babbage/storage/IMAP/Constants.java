@@ -18,6 +18,40 @@ public interface Constants
 	Pattern[] SENT_PATTERNS = {Pattern.compile("Sent", Pattern.CASE_INSENSITIVE), Pattern.compile("Sent Items", Pattern.CASE_INSENSITIVE)};
 	Pattern[] TRASH_PATTERNS = {Pattern.compile("Trash", Pattern.CASE_INSENSITIVE), Pattern.compile("Deleted", Pattern.CASE_INSENSITIVE)};
 
+	//	IMAP extensions for cheap resynchronization of folders (RFC 7162)
+	String CONDSTORE = "CONDSTORE";
+	String QRESYNC = "QRESYNC";
+
+	//	the number of messages whose headers we fetch and store in one go when syncing a folder
+	int SYNC_CHUNK_SIZE = 500;
+
+	//	the maximum number of characters of the text of a message we keep in the cache -- attachments are
+	//	streamed to the blob store, so this is the only part of a message held in memory while parsing it
+	int MAX_TEXT_SIZE = Integer.getInteger("babbage.maxTextSize", 4 * 1024 * 1024);
+
+	//	the largest text or CID part (in bytes, as stored on the server) we fetch along with the other parts of a
+	//	batch of messages being loaded -- bigger parts are streamed when they are read
+	int PREFETCH_SECTION_SIZE = Integer.getInteger("babbage.prefetchSectionSize", 256 * 1024);
+
+	//	the number of bytes of an attachment fetched from the server in each partial FETCH when downloading it
+	int FETCH_CHUNK_SIZE = 1024 * 1024;
+
+	//	how long we wait for more flag changes in a folder before storing them, so a burst of changes (e.g. another
+	//	client marking a whole folder read) is stored and notified in one go
+	long FLAG_COALESCE_MILLIS = Long.getLong("babbage.flagCoalesceMillis", 50L);
+
+	//	the number of folders of an account we keep open to do work on
+	int FOLDER_POOL_SIZE = Integer.getInteger("babbage.folderPoolSize", 8);
+
+	//	which folders we always keep an IDLE on -- all, special (the special folders) or mru (just the inbox) -- and
+	//	how many of the most recently synced folders we also keep an IDLE on
+	String WATCH_POLICY = System.getProperty("babbage.watch", "special");
+	int WATCH_MRU_SIZE = Integer.getInteger("babbage.watchMRU", 8);
+
+	//	IMAP extension for being told about changes to folders other than the selected one (RFC 5465)
+	String NOTIFY = "NOTIFY";
+	boolean USE_NOTIFY = !Boolean.getBoolean("babbage.noNotify");
+
 	Pattern MSG_JUNK_PATTERN = java.util.regex.Pattern.compile("\\$?Junk", java.util.regex.Pattern.CASE_INSENSITIVE);
 	//Pattern MSG_NOT_JUNK_PATTERN = Pattern.compile("(\\$NotJunk)", Pattern.CASE_INSENSITIVE);
 
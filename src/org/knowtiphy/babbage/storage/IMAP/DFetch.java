@@ -1,16 +1,25 @@
 package org.knowtiphy.babbage.storage.IMAP;
 
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
 import org.apache.jena.query.Dataset;
-import org.apache.jena.query.ParameterizedSparqlString;
+import org.apache.jena.query.Query;
 import org.apache.jena.query.QueryExecution;
 import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.query.QuerySolutionMap;
 import org.apache.jena.query.ResultSet;
 import org.apache.jena.rdf.model.Model;
+import org.apache.jena.util.iterator.ExtendedIterator;
 import org.apache.jena.vocabulary.RDF;
 import org.knowtiphy.babbage.storage.Vocabulary;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import static org.knowtiphy.utils.JenaUtils.P;
@@ -21,25 +30,10 @@ import static org.knowtiphy.utils.JenaUtils.R;
  */
 public interface DFetch
 {
-	ParameterizedSparqlString GET_MESSAGE_UIDS = new ParameterizedSparqlString(
-			"select ?mid "
-					+ "where {"
-					+ "      ?mid <" + RDF.type + "> <" + Vocabulary.IMAP_MESSAGE + ">.\n"
-					+ "      ?fid <" + Vocabulary.CONTAINS + "> ?mid.\n"
-					+ "      }");
-
-	ParameterizedSparqlString GET_MESSAGE_UIDS_WITH_HEADERS = new ParameterizedSparqlString(
-			"select ?mid\n"
-					+ "where \n"
-					+ "{\n"
-					+ "      ?mid <" + RDF.type + "> <" + Vocabulary.IMAP_MESSAGE + ">.\n"
-					+ "      ?fid <" + Vocabulary.CONTAINS + "> ?mid.\n"
-					+ "      ?aid <" + Vocabulary.CONTAINS + "> ?fid.\n"
-					//  if a message has an IS_READ then we have headers for it
-					+ "      ?mid <" + Vocabulary.IS_READ + "> ?isRead.\n"
-					+ "}");
+	//	queries are parsed once, here, and parameters are bound per execution (see getIDs) -- so the queries are
+	//	never mutated and can be shared by any number of threads
 
-	ParameterizedSparqlString GET_FOLDER_IDS = new ParameterizedSparqlString(
+	Query GET_FOLDER_IDS = QueryFactory.create(
 			"select ?fid "
 					+ "where {"
 					+ "      ?aid <" + Vocabulary.CONTAINS + "> ?fid.\n"
@@ -48,17 +42,109 @@ public interface DFetch
 					//+ "      filter(?type = <" + Vocabulary.IMAP_FOLDER + ">).\n"
 					+ "      }");
 
+	//	nodes for the hot lookups, which bypass SPARQL and scan the graph directly
+
+	Node CONTAINS = NodeFactory.createURI(Vocabulary.CONTAINS);
+	Node TYPE = RDF.type.asNode();
+	Node IMAP_MESSAGE = NodeFactory.createURI(Vocabulary.IMAP_MESSAGE);
+	Node IS_READ = NodeFactory.createURI(Vocabulary.IS_READ);
+
 	static boolean hasFolder(Model model, String folderId)
 	{
 		return model.listStatements(R(model, folderId),
 				P(model, RDF.type.toString()), R(model, Vocabulary.IMAP_FOLDER)).hasNext();
 	}
 
-	//  get the ids of messages stored in the database that match the query
-	private static Set<String> getIDs(Dataset dbase, String query, String proj)
+	//	get the ids of the messages, out of the given ones, that we don't have the content of
+
+	static List<String> getMessagesWithoutContent(Model model, Collection<String> messageIds)
+	{
+		var hasContent = P(model, Vocabulary.HAS_CONTENT);
+		var result = new ArrayList<String>(messageIds.size());
+		for (String messageId : messageIds)
+		{
+			if (!model.listObjectsOfProperty(R(model, messageId), hasContent).hasNext())
+			{
+				result.add(messageId);
+			}
+		}
+
+		return result;
+	}
+
+	//	get a long valued attribute of a resource, or -1 if the resource doesn't have one
+
+	private static long getLong(Model model, String subject, String predicate)
+	{
+		var it = model.listObjectsOfProperty(R(model, subject), P(model, predicate));
+		return it.hasNext() ? it.next().asLiteral().getLong() : -1;
+	}
+
+	//	get a string (or resource) valued attribute of a resource, or null if the resource doesn't have one
+
+	private static String getString(Model model, String subject, String predicate)
+	{
+		var it = model.listObjectsOfProperty(R(model, subject), P(model, predicate));
+		if (!it.hasNext())
+		{
+			return null;
+		}
+		var node = it.next();
+		return node.isLiteral() ? node.asLiteral().getLexicalForm() : node.toString();
+	}
+
+	//	get where to find the content of an attachment, or null if we don't know
+
+	static AttachmentLocation getAttachmentLocation(Model model, String attachmentId)
 	{
+		var messages = model.listSubjectsWithProperty(P(model, Vocabulary.HAS_ATTACHMENT), R(model, attachmentId));
+		if (!messages.hasNext())
+		{
+			return null;
+		}
+		var messageId = messages.next();
+		var folders = model.listSubjectsWithProperty(P(model, Vocabulary.CONTAINS), messageId);
+		var section = getString(model, attachmentId, Vocabulary.HAS_SECTION);
+		if (!folders.hasNext() || section == null)
+		{
+			return null;
+		}
+
+		return new AttachmentLocation(folders.next().toString(), messageId.toString(), section,
+				getString(model, attachmentId, Vocabulary.HAS_TRANSFER_ENCODING),
+				getString(model, attachmentId, Vocabulary.HAS_CONTENT));
+	}
+
+	//	get the synchronization state stored for a folder at the end of its last sync, or null if we
+	//	don't have a complete state (e.g. the folder has never been synced)
+
+	static SyncState getSyncState(Model model, String folderId)
+	{
+		var uidValidity = getLong(model, folderId, Vocabulary.HAS_UID_VALIDITY);
+		var uidNext = getLong(model, folderId, Vocabulary.HAS_UID_NEXT);
+		var messageCount = getLong(model, folderId, Vocabulary.HAS_SYNC_MESSAGE_COUNT);
+		if (uidValidity == -1 || uidNext == -1 || messageCount == -1)
+		{
+			return null;
+		}
+
+		return new SyncState(uidValidity, uidNext, getLong(model, folderId, Vocabulary.HAS_HIGHEST_MOD_SEQ),
+				messageCount);
+	}
+
+	//  get the ids of resources stored in the database that match the query, with the given variables bound to
+	//	the given IRIs
+	private static Set<String> getIDs(Dataset dbase, Query query, String proj, String... bindings)
+	{
+		var model = dbase.getDefaultModel();
+		var initial = new QuerySolutionMap();
+		for (int i = 0; i < bindings.length; i += 2)
+		{
+			initial.add(bindings[i], R(model, bindings[i + 1]));
+		}
+
 		Set<String> stored = new HashSet<>(1000);
-		try (QueryExecution qexec = QueryExecutionFactory.create(query, dbase.getDefaultModel()))
+		try (QueryExecution qexec = QueryExecutionFactory.create(query, model, initial))
 		{
 			ResultSet results = qexec.execSelect();
 			results.forEachRemaining(soln -> stored.add(soln.get(proj).asResource().toString()));
@@ -67,23 +153,50 @@ public interface DFetch
 		return stored;
 	}
 
+	//	get the ids of the messages contained in a folder (that have headers if withHeaders is true)
+	private static Set<String> getMessageIDs(Graph graph, String fid, boolean withHeaders)
+	{
+		Set<String> stored = new HashSet<>(1000);
+		ExtendedIterator<Triple> it = graph.find(NodeFactory.createURI(fid), CONTAINS, Node.ANY);
+		try
+		{
+			while (it.hasNext())
+			{
+				var mid = it.next().getObject();
+				//  if a message has an IS_READ then we have headers for it
+				if (graph.contains(mid, TYPE, IMAP_MESSAGE) && (!withHeaders || graph.contains(mid, IS_READ, Node.ANY)))
+				{
+					stored.add(mid.getURI());
+				}
+			}
+		}
+		finally
+		{
+			it.close();
+		}
+
+		return stored;
+	}
+
 	static Set<String> getStoredMessageIDs(Dataset cache, String fid)
 	{
-		GET_MESSAGE_UIDS.setIri("fid", fid);
-		return getIDs(cache, GET_MESSAGE_UIDS.toString(), "mid");
+		return getMessageIDs(cache.getDefaultModel().getGraph(), fid, false);
 	}
 
 	static Set<String> getStoredMessagesWithHeadersIDs(Dataset cache, String aid, String fid)
 	{
-		GET_MESSAGE_UIDS_WITH_HEADERS.setIri("aid", aid);
-		GET_MESSAGE_UIDS_WITH_HEADERS.setIri("fid", fid);
-		return getIDs(cache, GET_MESSAGE_UIDS_WITH_HEADERS.toString(), "mid");
+		var graph = cache.getDefaultModel().getGraph();
+		if (!graph.contains(NodeFactory.createURI(aid), CONTAINS, NodeFactory.createURI(fid)))
+		{
+			return new HashSet<>();
+		}
+
+		return getMessageIDs(graph, fid, true);
 	}
 
 	static Collection<String> getFolderIDs(Dataset cache, String aid)
 	{
-		GET_FOLDER_IDS.setIri(aid, aid);
-		return getIDs(cache, GET_FOLDER_IDS.toString(), "fid");
+		return getIDs(cache, GET_FOLDER_IDS, "fid", "aid", aid);
 	}
 }
 
@@ -74,16 +74,28 @@ public interface DStore
 				.addDP(folderId, Vocabulary.HAS_UNREAD_MESSAGE_COUNT, folder.getUnreadMessageCount());
 	}
 
+	//	remember where we got to in a folder so the next sync only has to look at what changed since then
+	static void addSyncState(Delta delta, String folderId, long uidNext, long highestModSeq, int messageCount)
+	{
+		delta.addDP(folderId, Vocabulary.HAS_UID_NEXT, uidNext)
+				.addDP(folderId, Vocabulary.HAS_SYNC_MESSAGE_COUNT, messageCount);
+		if (highestModSeq >= 0)
+		{
+			delta.addDP(folderId, Vocabulary.HAS_HIGHEST_MOD_SEQ, highestModSeq);
+		}
+	}
+
 	static void addMessage(Delta delta, String folderId, String messageId)
 	{
 		delta.addOP(messageId, RDF.type.toString(), Vocabulary.IMAP_MESSAGE)
 				.addOP(folderId, Vocabulary.CONTAINS, messageId);
 	}
 
-	static void addMessageContent(Delta delta, Message message, String mid) throws Exception
+	//	the text of the message goes in the cache, and CID parts go in the blob store with just a reference to
+	//	their blob and their size in the cache. Attachments are left on the server -- we just store where to find
+	//	them (their section), and fetch them on demand
+	static void addMessageContent(Delta delta, MessageContent content)
 	{
-		var content = new MessageContent(message, mid,true).process();
-
 		//System.out.println("addMessageContent -- BODY : " + content.id);
 		delta.addDP(content.mid, Vocabulary.HAS_CONTENT, content.content)
 				.addDP(content.mid, Vocabulary.HAS_MIME_TYPE, content.mimeType);
@@ -92,7 +104,8 @@ public interface DStore
 		{
 			//  Note: the local CID is a string, not a URI -- it is unique within a message, but not across messages
 			delta.addOP(content.mid, Vocabulary.HAS_CID_PART, attachment.id)
-					.addDP(attachment.id, Vocabulary.HAS_CONTENT, attachment.content)
+					.addOP(attachment.id, Vocabulary.HAS_CONTENT, attachment.blob)
+					.addDP(attachment.id, Vocabulary.HAS_SIZE, attachment.size)
 					.addDP(attachment.id, Vocabulary.HAS_MIME_TYPE, attachment.mimeType)
 					.addDP(attachment.id, Vocabulary.HAS_LOCAL_CID, attachment.localName);
 		}
@@ -105,9 +118,18 @@ public interface DStore
 			if (attachment.fileName != null)
 			{
 				delta.addOP(content.mid, Vocabulary.HAS_ATTACHMENT, attachment.id)
-						.addDP(attachment.id, Vocabulary.HAS_CONTENT, attachment.content)
+						.addDP(attachment.id, Vocabulary.HAS_SIZE, attachment.size)
 						.addDP(attachment.id, Vocabulary.HAS_MIME_TYPE, attachment.mimeType)
 						.addDP(attachment.id, Vocabulary.HAS_FILE_NAME, attachment.fileName);
+				if (attachment.blob != null)
+				{
+					delta.addOP(attachment.id, Vocabulary.HAS_CONTENT, attachment.blob);
+				}
+				if (attachment.section != null)
+				{
+					delta.addDP(attachment.id, Vocabulary.HAS_SECTION, attachment.section)
+							.addDP(attachment.id, Vocabulary.HAS_TRANSFER_ENCODING, attachment.encoding);
+				}
 			}
 		}
 
@@ -169,6 +191,21 @@ public interface DStore
 						(RDFNode) null));
 	}
 
+	static void deleteSyncState(Dataset dbase, Delta delta, String folderId)
+	{
+		var model = dbase.getDefaultModel();
+		var fRes = R(model, folderId);
+		delta.delete(model.listStatements(fRes, P(model, Vocabulary.HAS_UID_NEXT), (RDFNode) null))
+				.delete(model.listStatements(fRes, P(model, Vocabulary.HAS_HIGHEST_MOD_SEQ), (RDFNode) null))
+				.delete(model.listStatements(fRes, P(model, Vocabulary.HAS_SYNC_MESSAGE_COUNT), (RDFNode) null));
+	}
+
+	static void deleteUIDValidity(Dataset dbase, Delta delta, String folderId)
+	{
+		var model = dbase.getDefaultModel();
+		delta.delete(model.listStatements(R(model, folderId), P(model, Vocabulary.HAS_UID_VALIDITY), (RDFNode) null));
+	}
+
 	static void deleteFolder(Dataset dbase, Delta delta, String folderId)
 	{
 		Model model = dbase.getDefaultModel();
@@ -40,11 +40,20 @@ public class Encode
 //	return Vocabulary.E(Vocabulary.IMAP_MESSAGE, emailAddress, folder.getUIDValidity(), folder.getUID(message));
 	}
 
-	static Message decode(Folder folder, String id) throws MessagingException
+	static String encode(Folder folder, long uid) throws MessagingException
+	{
+		return Vocabulary.E(encode(folder), uid);
+	}
+
+	static long uid(String id)
 	{
 		int l = id.lastIndexOf("/");
-		long mid = Long.parseLong(id.substring(l + 1));
-		return U(folder).getMessageByUID(mid);
+		return Long.parseLong(id.substring(l + 1));
+	}
+
+	static Message decode(Folder folder, String id) throws MessagingException
+	{
+		return U(folder).getMessageByUID(uid(id));
 	}
 
 	static String encode(Message message, String cidName) throws MessagingException
@@ -0,0 +1,190 @@
+package org.knowtiphy.babbage.storage.IMAP;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+//	a fixed pool of threads shared by many accounts. Each account submits work to its own lane, and the threads
+//	take work from the lanes with work round robin, so one busy account (e.g. loading ahead a huge folder) can't
+//	starve the others. Lanes are executor services, so can be shut down (and awaited) per account.
+
+public class FairExecutor
+{
+	private static final Logger LOGGER = Logger.getLogger(FairExecutor.class.getName());
+
+	//	the lanes that have work, in the order they get to run it -- a lane is in here iff it has queued tasks
+	private final Deque<Lane> ready = new ArrayDeque<>();
+	private final List<Thread> threads = new ArrayList<>();
+	private boolean shutdown = false;
+
+	FairExecutor(String name, int nThreads)
+	{
+		for (int i = 0; i < nThreads; i++)
+		{
+			var thread = new Thread(this::run, name + "-" + i);
+			thread.setDaemon(true);
+			threads.add(thread);
+			thread.start();
+		}
+	}
+
+	Lane lane()
+	{
+		return new Lane();
+	}
+
+	int getThreadCount()
+	{
+		return (int) threads.stream().filter(Thread::isAlive).count();
+	}
+
+	synchronized void shutdown()
+	{
+		shutdown = true;
+		notifyAll();
+	}
+
+	private void run()
+	{
+		while (true)
+		{
+			Lane lane;
+			Runnable task;
+			synchronized (this)
+			{
+				while (ready.isEmpty() && !shutdown)
+				{
+					try
+					{
+						wait();
+					}
+					catch (InterruptedException ex)
+					{
+						return;
+					}
+				}
+
+				if (ready.isEmpty())
+				{
+					return;
+				}
+
+				lane = ready.poll();
+				task = lane.tasks.poll();
+				lane.running++;
+				//	back of the queue for the lane's next task
+				if (!lane.tasks.isEmpty())
+				{
+					ready.add(lane);
+				}
+			}
+
+			try
+			{
+				task.run();
+			}
+			catch (RuntimeException ex)
+			{
+				LOGGER.log(Level.WARNING, "task failed :: {0}", ex.getLocalizedMessage());
+			}
+			finally
+			{
+				synchronized (this)
+				{
+					lane.running--;
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	class Lane extends AbstractExecutorService
+	{
+		private final Deque<Runnable> tasks = new ArrayDeque<>();
+		private boolean shutdown = false;
+		private int running = 0;
+
+		@Override
+		public void execute(Runnable command)
+		{
+			synchronized (FairExecutor.this)
+			{
+				if (shutdown || FairExecutor.this.shutdown)
+				{
+					throw new RejectedExecutionException();
+				}
+				if (tasks.isEmpty())
+				{
+					ready.add(this);
+				}
+				tasks.add(command);
+				FairExecutor.this.notifyAll();
+			}
+		}
+
+		@Override
+		public void shutdown()
+		{
+			synchronized (FairExecutor.this)
+			{
+				shutdown = true;
+			}
+		}
+
+		@Override
+		public List<Runnable> shutdownNow()
+		{
+			synchronized (FairExecutor.this)
+			{
+				shutdown = true;
+				ready.remove(this);
+				var pending = new ArrayList<>(tasks);
+				tasks.clear();
+				return pending;
+			}
+		}
+
+		@Override
+		public boolean isShutdown()
+		{
+			synchronized (FairExecutor.this)
+			{
+				return shutdown;
+			}
+		}
+
+		@Override
+		public boolean isTerminated()
+		{
+			synchronized (FairExecutor.this)
+			{
+				return shutdown && tasks.isEmpty() && running == 0;
+			}
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+		{
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			synchronized (FairExecutor.this)
+			{
+				while (!isTerminated())
+				{
+					long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+					if (remaining <= 0)
+					{
+						return false;
+					}
+					FairExecutor.this.wait(remaining);
+				}
+				return true;
+			}
+		}
+	}
+}
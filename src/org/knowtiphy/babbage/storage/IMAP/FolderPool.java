@@ -0,0 +1,277 @@
+package org.knowtiphy.babbage.storage.IMAP;
+
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.mail.Store;
+import javax.mail.URLName;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+//	the open folders of an account that we do work on (marking, copying, deleting, loading content, ...), so every
+//	operation on a folder reuses the same open folder, and so the same connection, rather than opening (SELECTing)
+//	the folder afresh. Work borrows a folder and gives it back when it is done, and when there are too many open
+//	the least recently used folder that nobody is using is closed.
+//
+//	note: watched folders are not pooled -- using a folder stops its IDLE, and not all work re-arms it
+
+public class FolderPool
+{
+	private static final Logger LOGGER = Logger.getLogger(FolderPool.class.getName());
+
+	private final Store store;
+	private final int capacity;
+	//	in least recently used order
+	private final Map<String, Entry> folders = new LinkedHashMap<>(16, 0.75f, true);
+
+	//	metrics
+	private final AtomicLong selects = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong failedChecks = new AtomicLong();
+	private final AtomicLong overCapacity = new AtomicLong();
+
+	FolderPool(Store store, int capacity)
+	{
+		this.store = store;
+		this.capacity = capacity;
+	}
+
+	//	borrow an open folder -- an open folder we already have if it is still healthy. The pool never closes a
+	//	folder while it is borrowed, so the lease must be closed as soon as the work on the folder is done.
+	//
+	//	only the bookkeeping is done holding the pool's lock -- opening, checking and closing folders talk to the
+	//	server, so they are done outside it, and only borrowers of the same folder wait for each other
+
+	Lease borrow(String fid) throws MessagingException
+	{
+		while (true)
+		{
+			Entry entry;
+			synchronized (this)
+			{
+				entry = folders.computeIfAbsent(fid, k -> new Entry());
+				//	so it isn't evicted while we open or check it
+				entry.users++;
+			}
+
+			boolean healthy;
+			try
+			{
+				healthy = open(fid, entry);
+			}
+			catch (MessagingException | RuntimeException ex)
+			{
+				discard(fid, entry);
+				throw ex;
+			}
+
+			if (healthy)
+			{
+				List<Entry> evicted;
+				synchronized (this)
+				{
+					evicted = evict();
+				}
+				evicted.forEach(FolderPool::close);
+				return new Lease(entry);
+			}
+
+			//	take it out of the pool and try again with a fresh folder
+			failedChecks.incrementAndGet();
+			discard(fid, entry);
+		}
+	}
+
+	void close()
+	{
+		List<Entry> entries;
+		synchronized (this)
+		{
+			LOGGER.log(Level.INFO, "{0}", this);
+			entries = new ArrayList<>(folders.values());
+			folders.clear();
+		}
+		entries.forEach(FolderPool::close);
+	}
+
+	//	open the entry's folder if nobody has yet, otherwise check it is still healthy
+
+	private boolean open(String fid, Entry entry) throws MessagingException
+	{
+		synchronized (entry)
+		{
+			if (entry.folder == null)
+			{
+				var folder = store.getFolder(new URLName(fid).getFile());
+				//	this assertion will be crap later but for the moment it will do
+				assert folder != null;
+				assert folder.exists();
+				folder.open(Folder.READ_WRITE);
+				selects.incrementAndGet();
+				entry.folder = folder;
+				return true;
+			}
+
+			if (isHealthy(entry.folder))
+			{
+				hits.incrementAndGet();
+				return true;
+			}
+
+			return false;
+		}
+	}
+
+	private void release(Entry entry)
+	{
+		List<Entry> closing;
+		synchronized (this)
+		{
+			entry.users--;
+			if (entry.retired)
+			{
+				//	a folder that has been taken out of the pool is closed once the last borrower gives it back
+				closing = entry.users == 0 ? List.of(entry) : List.of();
+			}
+			else
+			{
+				closing = evict();
+			}
+		}
+		closing.forEach(FolderPool::close);
+	}
+
+	//	take a folder that can't be used out of the pool, and give up our use of it
+
+	private void discard(String fid, Entry entry)
+	{
+		boolean unused;
+		synchronized (this)
+		{
+			folders.remove(fid, entry);
+			entry.retired = true;
+			entry.users--;
+			unused = entry.users == 0;
+		}
+		if (unused)
+		{
+			close(entry);
+		}
+	}
+
+	//	take least recently used folders that nobody is using out of the pool until we are back down to capacity,
+	//	returning them to be closed -- if they are all in use the pool stays over capacity until enough of them
+	//	are given back. Called holding the pool's lock.
+
+	private List<Entry> evict()
+	{
+		var evicted = new ArrayList<Entry>();
+		var it = folders.values().iterator();
+		while (folders.size() > capacity && it.hasNext())
+		{
+			var eldest = it.next();
+			if (eldest.users == 0)
+			{
+				it.remove();
+				evictions.incrementAndGet();
+				evicted.add(eldest);
+			}
+		}
+
+		if (folders.size() > capacity)
+		{
+			overCapacity.incrementAndGet();
+		}
+
+		return evicted;
+	}
+
+	//	getting the message count of an open folder sends a NOOP if the connection has been quiet for a while,
+	//	so it finds dead connections without costing a round trip on busy ones
+
+	private static boolean isHealthy(Folder folder)
+	{
+		try
+		{
+			return folder.isOpen() && folder.getMessageCount() >= 0;
+		}
+		catch (MessagingException | IllegalStateException ex)
+		{
+			return false;
+		}
+	}
+
+	private static void close(Entry entry)
+	{
+		var folder = entry.folder;
+		if (folder == null)
+		{
+			return;
+		}
+
+		try
+		{
+			if (folder.isOpen())
+			{
+				folder.close(false);
+			}
+		}
+		catch (MessagingException ex)
+		{
+			LOGGER.log(Level.FINE, "close of {0} failed :: {1}",
+					new String[]{folder.getFullName(), ex.getLocalizedMessage()});
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "FolderPool{" +
+				"selects=" + selects.get() +
+				", hits=" + hits.get() +
+				", evictions=" + evictions.get() +
+				", failedChecks=" + failedChecks.get() +
+				", overCapacity=" + overCapacity.get() +
+				'}';
+	}
+
+	private static class Entry
+	{
+		//	null until the first borrower has opened it
+		volatile Folder folder;
+		//	the number of borrowers using the folder, and whether it has been taken out of the pool -- guarded by
+		//	the pool's lock
+		int users = 0;
+		boolean retired = false;
+	}
+
+	//	a borrowed folder -- closing the lease gives the folder back to the pool, it doesn't close the folder
+
+	class Lease implements AutoCloseable
+	{
+		final Folder folder;
+		private final Entry entry;
+		private boolean released = false;
+
+		private Lease(Entry entry)
+		{
+			this.entry = entry;
+			this.folder = entry.folder;
+		}
+
+		@Override
+		public void close()
+		{
+			if (!released)
+			{
+				released = true;
+				release(entry);
+			}
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package org.knowtiphy.babbage.storage.IMAP;
+
+import com.sun.mail.iap.ParsingException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.IMAPResponse;
+import com.sun.mail.imap.protocol.Status;
+import org.knowtiphy.babbage.storage.Vocabulary;
+
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+//	decides which folders of an account we keep an IDLE on. The policy picks the folders that are always watched --
+//	every folder, the special folders, or just the inbox -- and on top of those we watch the folders a client most
+//	recently asked to sync, up to some limit, closing the least recently used one when we go over it.
+//
+//	if the server supports NOTIFY (RFC 5465) then the inbox is the only folder always watched, and we ask the
+//	server to tell us, on the same connection, about messages arriving in or leaving every other folder, which we
+//	then sync. NOTIFY doesn't tell us about flag changes, so the recently used folders are still watched.
+
+public class FolderWatcher
+{
+	private static final Logger LOGGER = Logger.getLogger(FolderWatcher.class.getName());
+
+	enum Policy
+	{
+		ALL, SPECIAL, MRU
+	}
+
+	private final IMAPAdapter adapter;
+	private final Policy policy;
+	private final int mruSize;
+	private final Set<String> pinned = new HashSet<>();
+	//	the watched folders, least recently synced first
+	private final Map<String, Folder> watched = new LinkedHashMap<>();
+
+	FolderWatcher(IMAPAdapter adapter, Policy policy, int mruSize)
+	{
+		this.adapter = adapter;
+		this.policy = policy;
+		this.mruSize = mruSize;
+	}
+
+	//	start watching the folders the policy says to always watch
+
+	synchronized void start(Collection<Folder> folders, boolean notify) throws MessagingException
+	{
+		for (Folder folder : folders)
+		{
+			var fid = Encode.encode(folder);
+			if (isPinned(fid, folder, notify))
+			{
+				pinned.add(fid);
+				watched.put(fid, adapter.watch(folder));
+			}
+		}
+
+		if (notify)
+		{
+			notify((IMAPFolder) watched.get(adapter.specialType2ID.get(Vocabulary.INBOX_FOLDER)));
+		}
+
+		LOGGER.log(Level.CONFIG, "{0} :: watching {1}", new Object[]{policy, watched.keySet()});
+	}
+
+	//	a client has just had a folder synced -- returns true if we are now watching the given folder object, so the
+	//	caller must leave it open
+
+	synchronized boolean used(String fid, Folder folder) throws MessagingException
+	{
+		var current = watched.remove(fid);
+		if (current != null)
+		{
+			watched.put(fid, current);
+			return false;
+		}
+
+		if (policy == Policy.ALL)
+		{
+			//	a folder created since we started watching
+			pinned.add(fid);
+		}
+		else if (mruSize == 0)
+		{
+			return false;
+		}
+
+		watched.put(fid, adapter.watch(folder));
+
+		var it = watched.entrySet().iterator();
+		while (watched.size() - pinned.size() > mruSize && it.hasNext())
+		{
+			var entry = it.next();
+			if (!pinned.contains(entry.getKey()))
+			{
+				LOGGER.log(Level.FINE, "no longer watching {0}", entry.getKey());
+				it.remove();
+				adapter.unwatch(entry.getValue());
+			}
+		}
+
+		return true;
+	}
+
+	//	the watched folder object for a folder, or null if the folder isn't being watched
+
+	synchronized Folder get(String fid)
+	{
+		return watched.get(fid);
+	}
+
+	synchronized Collection<Folder> watched()
+	{
+		return new ArrayList<>(watched.values());
+	}
+
+	private boolean isPinned(String fid, Folder folder, boolean notify) throws MessagingException
+	{
+		if (fid.equals(adapter.specialType2ID.get(Vocabulary.INBOX_FOLDER)))
+		{
+			return true;
+		}
+
+		if (notify)
+		{
+			return false;
+		}
+
+		switch (policy)
+		{
+			case ALL:
+				return (folder.getType() & Folder.HOLDS_MESSAGES) != 0;
+			case SPECIAL:
+				return adapter.specialId2Type.containsKey(fid);
+			default:
+				return false;
+		}
+	}
+
+	//	ask the server to send a STATUS on the inbox connection whenever messages arrive in or are expunged from
+	//	any other folder -- the responses turn up while the inbox is idling
+
+	private void notify(IMAPFolder folder) throws MessagingException
+	{
+		folder.doCommand(protocol -> {
+			protocol.addResponseHandler(this::handleStatus);
+			Response[] responses = protocol.command("NOTIFY SET (personal (MessageNew MessageExpunge))", null);
+			protocol.notifyResponseHandlers(responses);
+			protocol.handleResult(responses[responses.length - 1]);
+			return null;
+		});
+	}
+
+	private void handleStatus(Response response)
+	{
+		if (response instanceof IMAPResponse && ((IMAPResponse) response).keyEquals("STATUS"))
+		{
+			try
+			{
+				adapter.folderChanged(new Status(response).mbox);
+			}
+			catch (ParsingException | MessagingException ex)
+			{
+				LOGGER.log(Level.WARNING, "bad NOTIFY status :: {0}", ex.getLocalizedMessage());
+			}
+		}
+	}
+}
@@ -3,17 +3,21 @@ package org.knowtiphy.babbage.storage.IMAP;
 import com.sun.mail.imap.IMAPFolder;
 import com.sun.mail.imap.IMAPStore;
 import com.sun.mail.imap.IdleManager;
+import com.sun.mail.imap.MessageVanishedEvent;
+import com.sun.mail.imap.ResyncData;
 import com.sun.mail.util.MailConnectException;
 import org.apache.jena.query.Dataset;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.RDFNode;
 import org.apache.jena.vocabulary.RDF;
 import org.knowtiphy.babbage.storage.BaseAdapter;
+import org.knowtiphy.babbage.storage.BlobStore;
 import org.knowtiphy.babbage.storage.Delta;
 import org.knowtiphy.babbage.storage.EventSetBuilder;
 import org.knowtiphy.babbage.storage.IAdapter;
 import org.knowtiphy.babbage.storage.ListenerManager;
 import org.knowtiphy.babbage.storage.LocalStorage;
+import org.knowtiphy.babbage.storage.ServerExecutor;
 import org.knowtiphy.babbage.storage.Vocabulary;
 import org.knowtiphy.babbage.storage.exceptions.StorageException;
 import org.knowtiphy.utils.IProcedure;
@@ -36,31 +40,35 @@ import javax.mail.StoreClosedException;
 import javax.mail.Transport;
 import javax.mail.UIDFolder;
 import javax.mail.URLName;
+import javax.mail.event.MailEvent;
 import javax.mail.event.MessageChangedEvent;
 import javax.mail.event.MessageChangedListener;
 import javax.mail.event.MessageCountAdapter;
 import javax.mail.event.MessageCountEvent;
+import javax.mail.internet.MimeUtility;
 import javax.mail.search.FlagTerm;
 import javax.mail.search.SearchTerm;
 import java.io.IOException;
+import java.io.InputStream;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.BlockingDeque;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.FutureTask;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
@@ -105,21 +113,26 @@ public class IMAPAdapter extends BaseAdapter implements IAdapter
 	final Map<String, String> specialId2Type = new HashMap<>();
 
 	private final ExecutorService workService;
-	private final ScheduledExecutorService pingService;
+	//	threads shared with the other IMAP accounts
+	private final IMAPResources resources;
 	//	these are really the same thing, but having two allows fetching the content of a message immediately, even
-	//	if the load ahead service is completely busy.
-	private final ExecutorService contentService;
-	private final ExecutorService loadAheadService;
+	//	if the load ahead service is completely busy -- both run on this account's lane of a pool shared by all
+	//	accounts, or in virtual thread mode, on virtual threads bounded by separate permits for each service
+	private final ServerExecutor contentService;
+	private final ServerExecutor loadAheadService;
+	private ScheduledFuture<?> pinger;
+	private final FolderWatcher watcher;
 
 	private Store store;
+	private FolderPool folders;
 	private IdleManager idleManager;
 	protected Properties props;
 	private final AtomicBoolean closing = new AtomicBoolean(false);
 
-	public IMAPAdapter(String name, String type, Dataset cache, ListenerManager listenerManager,
+	public IMAPAdapter(String name, String type, Dataset cache, BlobStore blobs, ListenerManager listenerManager,
 					   BlockingDeque<Runnable> notificationQ, Model model)
 	{
-		super(type, cache, listenerManager, notificationQ);
+		super(type, cache, blobs, listenerManager, notificationQ);
 
 		imapServer = JenaUtils.unique(model, name, Vocabulary.HAS_IMAP_SERVER,  JenaUtils::getS);
 		smtpServer = JenaUtils.unique(model, name, Vocabulary.HAS_SMTP_SERVER,  JenaUtils::getS);
@@ -137,9 +150,13 @@ public class IMAPAdapter extends BaseAdapter implements IAdapter
 				RDFNode::toString, new HashSet<>(100));
 
 		workService = new PriorityExecutor();
-		contentService = Executors.newFixedThreadPool(4);
-		loadAheadService = Executors.newFixedThreadPool(4);
-		pingService = Executors.newSingleThreadScheduledExecutor();
+		resources = IMAPResources.acquire();
+		contentService = ServerExecutor.of(imapServer, "content", ServerExecutor.MAX_SERVER_CONNECTIONS,
+				resources::newContentLane);
+		loadAheadService = ServerExecutor.of(imapServer, "loadAhead",
+				ServerExecutor.MAX_SERVER_LOAD_AHEAD_CONNECTIONS, resources::newLoadAheadLane);
+		watcher = new FolderWatcher(this, FolderWatcher.Policy.valueOf(Constants.WATCH_POLICY.toUpperCase()),
+				Constants.WATCH_MRU_SIZE);
 
 		operations.put(Vocabulary.SYNC_AHEAD, this::syncAhead);
 		operations.put(Vocabulary.MARK_READ, this::markMessagesAsRead);
@@ -147,6 +164,7 @@ public class IMAPAdapter extends BaseAdapter implements IAdapter
 		operations.put(Vocabulary.MARK_JUNK, this::markMessagesAsJunk);
 		operations.put(Vocabulary.MARK_ANSWERED, this::markMessagesAsAnswered);
 		operations.put(Vocabulary.SEND_MESSAGE, this::sendMessage);
+		operations.put(Vocabulary.FETCH_ATTACHMENT, this::fetchAttachment);
 		operations.put(Vocabulary.TRUST_SENDER, this::trustSender);
 		operations.put(Vocabulary.TRUST_PROVIDER, this::trustProvider);
 	}
@@ -154,22 +172,22 @@ public class IMAPAdapter extends BaseAdapter implements IAdapter
 	public void initialize(Map<String, Function<String, Future<?>>> syncs, Delta delta) throws MessagingException, IOException
 	{
 		LOGGER.entering(this.getClass().getCanonicalName(), "initialize");
-		var eventService = Executors.newCachedThreadPool();
-		establistProperties(eventService);
+		establistProperties(resources.getEventService());
 		var session = Session.getInstance(props, null);
 		//session.setDebug(true);
 		store = session.getStore("imaps");
 		store.connect(imapServer, emailAddress, password);
-		//	TODO -- one idle manager for all accounts ..
+		folders = new FolderPool(store, Constants.FOLDER_POOL_SIZE);
 		//	TODO -- check if the provider has IDLE capabilities
-		idleManager = new IdleManager(session, eventService);
+		idleManager = resources.getIdleManager(session);
 
 		syncs.put(Vocabulary.IMAP_ACCOUNT, this::syncAccount);
-		syncs.put(Vocabulary.IMAP_FOLDER, this::syncFolder);
+		syncs.put(Vocabulary.IMAP_FOLDER, fid -> syncFolder(fid, true));
 		syncs.put(Vocabulary.IMAP_MESSAGE, this::syncMessage);
 
 		initializeFolders();
 		addInitialTriples(delta);
+		watcher.start(List.of(getFolders()), Constants.USE_NOTIFY && hasCapability(Constants.NOTIFY));
 		startPinger();
 
 		LOGGER.exiting(this.getClass().getCanonicalName(), "initialize");
@@ -207,9 +225,11 @@ public class IMAPAdapter extends BaseAdapter implements IAdapter
 		LOGGER.log(Level.INFO, "Saving account information");
 		IProcedure.doAndIgnore(() -> save(model));
 
-		LOGGER.log(Level.INFO, "Shutting down ping service");
-		IProcedure.doAndIgnore(pingService::shutdown);
-		IProcedure.doAndIgnore(() -> pingService.awaitTermination(10, TimeUnit.SECONDS));
+		LOGGER.log(Level.INFO, "Stopping pinger");
+		if (pinger != null)
+		{
+			pinger.cancel(false);
+		}
 
 		LOGGER.log(Level.INFO, "shutting down worker pools");
 		IProcedure.doAndIgnore(workService::shutdown);
@@ -219,9 +239,15 @@ public class IMAPAdapter extends BaseAdapter implements IAdapter
 		IProcedure.doAndIgnore(loadAheadService::shutdown);
 		IProcedure.doAndIgnore(() -> loadAheadService.awaitTermination(10, TimeUnit.SECONDS));
 
+		LOGGER.log(Level.INFO, "closing folders");
+		IProcedure.doAndIgnore(folders::close);
+
 		LOGGER.log(Level.INFO, "closing store");
 		IProcedure.doAndIgnore(store::close);
 
+		//	after the store is closed, so the shared IDLE manager has stopped watching our folders
+		IMAPResources.release();
+
 		LOGGER.exiting(this.getClass().getCanonicalName(), "close");
 	}
 
@@ -239,22 +265,35 @@ public class IMAPAdapter extends BaseAdapter implements IAdapter
 		JenaUtils.printModel(model, "Saved Model");
 	}
 
+	@Override
+	public Function<String, Future<?>> getReconcileSync(String type)
+	{
+		return Vocabulary.IMAP_FOLDER.equals(type) ? fid -> syncFolder(fid, false) : null;
+	}
+
 	private Future<?> syncAccount(String aid)
 	{
 		System.out.println("syncAccount " + aid);
-		return new FutureTask<>(() -> true);
+		return CompletableFuture.completedFuture(true);
 	}
 
-	private Future<?> syncFolder(String fid)
+	//	a sync a client asked for counts as using the folder, one we start ourselves (reconciling at startup, or
+	//	because NOTIFY told us the folder changed) doesn't
+
+	private Future<?> syncFolder(String fid, boolean used)
 	{
 		LOGGER.entering(this.getClass().getCanonicalName(), "syncFolder");
 
 		return addEventWork(() -> {
-			Folder folder = F(fid);
-			//	TODO -- ???? seems very dodgy
-			watch(folder);
-
-			var delta = synchronizeFolder(folder);
+			var state = query(() -> DFetch.getSyncState(cache.getDefaultModel(), fid));
+			var folder = (IMAPFolder) store.getFolder(new URLName(fid).getFile());
+			var vanished = openForSync(folder, state);
+			var delta = synchronizeFolder(folder, state, vanished);
+			//	keep an IDLE on the folder if the watch policy wants one, otherwise we are done with it
+			if (!used || !watcher.used(fid, folder))
+			{
+				folder.close(false);
+			}
 
 			var event = new EventSetBuilder();
 			var eid = event.newEvent(Vocabulary.FOLDER_SYNCED);
@@ -270,7 +309,7 @@ public class IMAPAdapter extends BaseAdapter implements IAdapter
 				listSubjectsWithProperty(P(cache.getDefaultModel(), Vocabulary.CONTAINS),
 						R(cache.getDefaultModel(), mid)).next().toString());
 
-		return contentService.submit(new MessageWork(() -> load(fid, List.of(mid))));
+		return contentService.submit(fid, new MessageWork(() -> load(fid, List.of(mid))));
 	}
 
 	private Future<?> mark(String oid, Model operation,
@@ -280,10 +319,13 @@ public class IMAPAdapter extends BaseAdapter implements IAdapter
 		var mids = getMessageIDs(oid, operation);
 
 		return addWork(new MessageWork(() -> {
-			Folder folder = F(fid);
-			Message[] messages = Encode.U(folder, mids);
-			op.accept(folder, messages, flag);
-			return List.of(folder);
+			try (var lease = F(fid))
+			{
+				Folder folder = lease.folder;
+				Message[] messages = Encode.U(folder, mids);
+				op.accept(folder, messages, flag);
+				return List.of(folder);
+			}
 		}));
 	}
 
@@ -313,18 +355,21 @@ public class IMAPAdapter extends BaseAdapter implements IAdapter
 	{
 		return addWork(() -> {
 			LOGGER.log(Level.INFO, "moveMessagesToJunk : {0}", delete);
-			Message[] messages = Encode.U(F(sourceFolderId), messageIds);
-			Folder sourceFolder = F(sourceFolderId);
-			Folder targetFolder = F(targetFolderId);
-			mark(messages, new Flags(Constants.JUNK_FLAG), true);
-			sourceFolder.copyMessages(messages, targetFolder);
-			if (delete)
+			try (var source = F(sourceFolderId); var target = F(targetFolderId))
 			{
-				mark(messages, new Flags(Flags.Flag.DELETED), true);
-				sourceFolder.expunge();
-			}
+				Folder sourceFolder = source.folder;
+				Message[] messages = Encode.U(sourceFolder, messageIds);
+				Folder targetFolder = target.folder;
+				mark(messages, new Flags(Constants.JUNK_FLAG), true);
+				sourceFolder.copyMessages(messages, targetFolder);
+				if (delete)
+				{
+					mark(messages, new Flags(Flags.Flag.DELETED), true);
+					sourceFolder.expunge();
+				}
 
-			return List.of(sourceFolder, targetFolder);
+				return List.of(sourceFolder, targetFolder);
+			}
 		});
 	}
 
@@ -336,20 +381,23 @@ public class IMAPAdapter extends BaseAdapter implements IAdapter
 
 		return addWork(new MessageWork(() -> {
 			//  TODO -- this is wrong, since can have both source and target close/fail
-			Folder source = F(sourceFolderId);
-			Folder target = F(targetFolderId);
-
-			Message[] messages = Encode.U(F(sourceFolderId), messageIds);
-			System.out.println("COPY MESSAGES MESSAGES");
-			System.out.println(Arrays.toString(messages));
-			source.copyMessages(messages, target);
-			//  is this even necessary, or is the semantics of copy already a delete in the original folder?
-			if (delete)
+			try (var sourceLease = F(sourceFolderId); var targetLease = F(targetFolderId))
 			{
-				mark(messages, new Flags(Flags.Flag.DELETED), true);
-				source.expunge();
+				Folder source = sourceLease.folder;
+				Folder target = targetLease.folder;
+
+				Message[] messages = Encode.U(source, messageIds);
+				System.out.println("COPY MESSAGES MESSAGES");
+				System.out.println(Arrays.toString(messages));
+				source.copyMessages(messages, target);
+				//  is this even necessary, or is the semantics of copy already a delete in the original folder?
+				if (delete)
+				{
+					mark(messages, new Flags(Flags.Flag.DELETED), true);
+					source.expunge();
+				}
+				return List.of(source);
 			}
-			return List.of(source);
 		}));
 	}
 
@@ -358,10 +406,13 @@ public class IMAPAdapter extends BaseAdapter implements IAdapter
 		var fid = JenaUtils.getOR(operation, oid, Vocabulary.HAS_FOLDER).toString();
 
 		return addWork(new MessageWork(() -> {
-			var folder = F(fid);
-			mark(oid, operation, (_f, msgs, flag) -> mark(msgs, new Flags(Flags.Flag.DELETED), flag), true);
-			folder.expunge();
-			return List.of(folder);
+			try (var lease = F(fid))
+			{
+				var folder = lease.folder;
+				mark(oid, operation, (_f, msgs, flag) -> mark(msgs, new Flags(Flags.Flag.DELETED), flag), true);
+				folder.expunge();
+				return List.of(folder);
+			}
 		}));
 	}
 
@@ -382,7 +433,7 @@ public class IMAPAdapter extends BaseAdapter implements IAdapter
 		System.out.println(delta);
 		delta.apply();
 		//	TODO -- fire off an event
-		return new FutureTask<>(() -> true);
+		return CompletableFuture.completedFuture(true);
 	}
 
 	private Future<?> trustSender(String oid, Model operation)
@@ -398,9 +449,12 @@ public class IMAPAdapter extends BaseAdapter implements IAdapter
 	public Future<?> appendMessages(String fid, Message[] messages)
 	{
 		return addWork(new MessageWork(() -> {
-			var folder = F(fid);
-			folder.appendMessages(messages);
-			return List.of(folder);
+			try (var lease = F(fid))
+			{
+				var folder = lease.folder;
+				folder.appendMessages(messages);
+				return List.of(folder);
+			}
 		}));
 	}
 
@@ -410,7 +464,57 @@ public class IMAPAdapter extends BaseAdapter implements IAdapter
 		var mids = getMessageIDs(oid, operation);
 		//System.out.println("syncOp = " + mids);
 
-		return loadAheadService.submit(() -> load(fid, mids));
+		return loadAheadService.submit(fid, () -> load(fid, mids));
+	}
+
+	//	download the content of an attachment, which load left on the server, into the blob store. The content is
+	//	streamed a chunk at a time from the attachment's section of the message. The future returns the blob id.
+
+	private Future<?> fetchAttachment(String oid, Model operation)
+	{
+		var aid = JenaUtils.getOR(operation, oid, Vocabulary.HAS_ATTACHMENT).toString();
+		//	find the attachment's folder so the download is queued with the other work on the folder
+		var found = query(() -> DFetch.getAttachmentLocation(cache.getDefaultModel(), aid));
+		if (found == null)
+		{
+			return CompletableFuture.failedFuture(new MessagingException("No such attachment " + aid));
+		}
+
+		return contentService.submit(found.folderId, () -> {
+			//	look again, as earlier work on the folder may have downloaded it
+			var location = query(() -> DFetch.getAttachmentLocation(cache.getDefaultModel(), aid));
+			if (location == null)
+			{
+				throw new MessagingException("No such attachment " + aid);
+			}
+			if (location.blob != null)
+			{
+				return location.blob;
+			}
+
+			String blob;
+			//	hold on to the folder until the whole attachment has been streamed
+			try (var lease = F(location.folderId))
+			{
+				var folder = (IMAPFolder) lease.folder;
+				var message = Encode.decode(folder, location.messageId);
+				if (message == null)
+				{
+					throw new MessageRemovedException(location.messageId);
+				}
+
+				try (InputStream in = MimeUtility.decode(new SectionInputStream(folder, message, location.section,
+						Constants.FETCH_CHUNK_SIZE), location.encoding))
+				{
+					blob = blobs.put(in);
+				}
+			}
+
+			var delta = getDelta();
+			delta.addOP(aid, Vocabulary.HAS_CONTENT, blob);
+			delta.apply();
+			return blob;
+		});
 	}
 
 	@Override
@@ -454,7 +558,8 @@ public class IMAPAdapter extends BaseAdapter implements IAdapter
 		//	do I need this?
 		props.put("mail.smtp.auth", "true");
 
-		props.put("mail.event.scope", "session"); // or "application"
+		//	one event dispatcher thread for all accounts, rather than one per account
+		props.put("mail.event.scope", "application");
 		props.put("mail.event.executor", eventService);
 
 		//	we need system properties to pick up command line flags
@@ -471,13 +576,59 @@ public class IMAPAdapter extends BaseAdapter implements IAdapter
 		return folder;
 	}
 
-	private Folder F(String id) throws MessagingException
+	//	borrow the pooled open folder with the given id -- the lease must be closed when the work on it is done
+
+	private FolderPool.Lease F(String id) throws MessagingException
+	{
+		return folders.borrow(id);
+	}
+
+	private boolean hasCapability(String capability) throws MessagingException
 	{
-		Folder f = store.getFolder(new URLName(id).getFile());
-		//	this assertion will be crap later but for the moment it will do
-		assert f != null;
-		assert f.exists();
-		return open(f);
+		return ((IMAPStore) store).hasCapability(capability);
+	}
+
+	//	open a folder for syncing -- if the server supports QRESYNC and we know the state of the folder from
+	//	the last sync then the SELECT tells us which messages were expunged since then. Returns the ids of
+	//	the expunged messages, or null if we don't know them.
+
+	private Set<String> openForSync(IMAPFolder folder, SyncState state) throws MessagingException
+	{
+		if (state != null && state.hasModSeq() && hasCapability(Constants.QRESYNC))
+		{
+			try
+			{
+				var vanished = new HashSet<String>();
+				var events = folder.open(Folder.READ_WRITE, new ResyncData(state.uidValidity, state.highestModSeq));
+				//	null if nothing happened since the last sync
+				if (events != null)
+				{
+					for (MailEvent event : events)
+					{
+						if (event instanceof MessageVanishedEvent)
+						{
+							for (long uid : ((MessageVanishedEvent) event).getUIDs())
+							{
+								vanished.add(Encode.encode(folder, uid));
+							}
+						}
+					}
+				}
+				return vanished;
+			}
+			catch (MessagingException ex)
+			{
+				LOGGER.log(Level.INFO, "{0} :: QRESYNC open failed :: {1}",
+						new String[]{emailAddress, ex.getLocalizedMessage()});
+				if (folder.isOpen())
+				{
+					return null;
+				}
+			}
+		}
+
+		open(folder);
+		return null;
 	}
 
 	private Folder[] getFolders() throws MessagingException
@@ -488,11 +639,12 @@ public class IMAPAdapter extends BaseAdapter implements IAdapter
 	private void fetchMessages(Folder folder, Message[] msgs) throws MessagingException
 	{
 		//	TODO -- this possibly needs to be tuned a bit
+		//	note: CONTENT_INFO gets the BODYSTRUCTURE, not the message -- the text part (and any CID parts) are
+		//	fetched by section afterwards, and attachments are left on the server until they are wanted
 		FetchProfile fp = new FetchProfile();
 		fp.add(FetchProfile.Item.CONTENT_INFO);
 		fp.add(FetchProfile.Item.ENVELOPE);
 		fp.add(FetchProfile.Item.FLAGS);
-		fp.add(IMAPFolder.FetchProfileItem.MESSAGE);
 		fp.add(UIDFolder.FetchProfileItem.UID);
 		fp.add(IMAPFolder.FetchProfileItem.HEADERS);
 
@@ -507,54 +659,77 @@ public class IMAPAdapter extends BaseAdapter implements IAdapter
 		//	the fetch of the message -- perhaps the single threadedness helps us?
 		//	definitely incorrect? Need to hold a write lock for the whole thing
 
-		//	System.out.println("load WORKER : calcing need to fetch");
 		try
 		{
-			List<String> needToFetch = new ArrayList<>();
-			for (String messageId : messageIds)
+			//	work out which of the messages don't have their content in one read transaction
+			var needToFetch = query(() -> DFetch.getMessagesWithoutContent(cache.getDefaultModel(), messageIds));
+			if (needToFetch.isEmpty())
 			{
-				boolean stored = query(() -> cache.getDefaultModel().
-						listObjectsOfProperty(R(cache.getDefaultModel(), messageId),
-								P(cache.getDefaultModel(), Vocabulary.HAS_CONTENT)).hasNext());
-				if (!stored)
+				return new LinkedList<>();
+			}
+
+			//	fetch the structure of all the missing messages in one go -- holding on to the folder until their
+			//	content has been read
+			try (var lease = F(folderId))
+			{
+				Folder folder = lease.folder;
+				Message[] msgs = Encode.U(folder, needToFetch);
+				fetchMessages(folder, msgs);
+
+				//	then the text (and CID) sections of all of them in one go
+				var contents = new HashMap<Long, MessageContent>();
+				var sections = new HashMap<Long, Collection<String>>();
+				for (Message message : msgs)
 				{
-					needToFetch.add(messageId);
+					try
+					{
+						var uid = ((UIDFolder) folder).getUID(message);
+						var content = new MessageContent(message, Encode.encode(message), true, blobs,
+								Constants.MAX_TEXT_SIZE, true).structure();
+						contents.put(uid, content);
+						sections.put(uid, content.sections(Constants.PREFETCH_SECTION_SIZE));
+					}
+					catch (MessageRemovedException ex)
+					{
+						//	deleted since we fetched it, so nothing to load
+					}
 				}
+				var fetched = SectionFetch.fetch((IMAPFolder) folder, sections);
 
-				if (!needToFetch.isEmpty())
+				//	get all the data first since we don't want to hold a write lock if the IMAP fetching stalls
+				var delta = getDelta();
+				for (var entry : contents.entrySet())
 				{
-					Folder folder = F(folderId);
-					Message[] msgs = Encode.U(folder, needToFetch);
-					fetchMessages(folder, msgs);
-
-					//	get all the data first since we don't want to hold a write lock if the IMAP fetching stalls
-					var delta = getDelta();
-					for (Message message : msgs)
+					try
 					{
-						var mid = Encode.encode(message);
-						DStore.addMessageContent(delta, message, mid);
+						DStore.addMessageContent(delta,
+								entry.getValue().process(fetched.getOrDefault(entry.getKey(), Map.of())));
+					}
+					catch (MessageRemovedException ex)
+					{
+						//	deleted since we fetched it, so nothing to load
 					}
-
-					delta.apply();
-					return List.of(folder);
 				}
+
+				delta.apply();
+				LOGGER.log(Level.FINE, "{0} :: loaded {1} messages, {2} with prefetched sections",
+						new Object[]{emailAddress, contents.size(), fetched.size()});
+				return List.of(folder);
 			}
 		}
 		catch (Exception ex)
 		{
-			System.out.println("load WORKER : FAILED");
-			ex.printStackTrace();
+			LOGGER.log(Level.WARNING, "{0} :: load of {1} failed :: {2}",
+					new String[]{emailAddress, folderId, ex.getLocalizedMessage()});
 		}
 
 		return new LinkedList<>();
 	}
 
-	private void startPinger() throws MessagingException
+	private void startPinger()
 	{
 		LOGGER.entering(this.getClass().getCanonicalName(), "::startPinger");
-		var inbox = specialType2ID.get(Vocabulary.INBOX_FOLDER);
-		assert inbox != null;
-		pingService.scheduleAtFixedRate(new Ping(this, F(inbox)),
+		pinger = resources.getScheduler().scheduleAtFixedRate(new Ping(this, watcher),
 				Constants.PING_FREQUENCY, Constants.PING_FREQUENCY, TimeUnit.MINUTES);
 		LOGGER.exiting(this.getClass().getCanonicalName(), "startPinger");
 	}
@@ -580,7 +755,7 @@ public class IMAPAdapter extends BaseAdapter implements IAdapter
 		LOGGER.entering(this.getClass().getCanonicalName(), "initializeFolders");
 
 		//	compute special folders
-		specialType2ID.put(Vocabulary.INBOX_FOLDER, Encode.encode(F("INBOX")));
+		specialType2ID.put(Vocabulary.INBOX_FOLDER, Encode.encode(store.getFolder("INBOX")));
 		if (((IMAPStore) store).hasCapability("SPECIAL-USE"))
 		{
 			for (Folder folder : getFolders())
@@ -680,28 +855,64 @@ public class IMAPAdapter extends BaseAdapter implements IAdapter
 		LOGGER.exiting(this.getClass().getCanonicalName(), "initializeFolders");
 	}
 
-	private void watch(Folder folder) throws MessagingException
+	//	only the folder watcher decides what to watch
+
+	Folder watch(Folder folder) throws MessagingException
 	{
 		assert folder != null;
 		LOGGER.entering(this.getClass().getCanonicalName(), folder.getName() + "::watch");
-		folder.addMessageCountListener(new WatchCountChanges());
+		if (!folder.isOpen())
+		{
+			open(folder);
+		}
+		folder.addMessageCountListener(new WatchCountChanges(UIDIndex.of((IMAPFolder) folder)));
 		folder.addMessageChangedListener(new WatchMessageChanges());
 		//System.out.println("WATCHING " + folder + " " + folder.isOpen());
 		idleManager.watch(folder);
 		LOGGER.exiting(this.getClass().getCanonicalName(), folder.getName() + "::watch");
+		return folder;
+	}
+
+	//	closing the folder stops the IDLE on it, and the listeners go with the folder object
+
+	void unwatch(Folder folder)
+	{
+		IProcedure.doAndIgnore(() -> folder.close(false));
 	}
 
+	//	re-arm the IDLE on a folder after we have dealt with what it told us -- the folder we have been working on
+	//	need not be the folder object that is being watched, or be watched at all
+
 	void rewatch(Folder folder) throws MessagingException
 	{
 		LOGGER.entering(this.getClass().getCanonicalName(), folder.getName() + "::rewatch");
-		//System.out.println("REWATCHING " + folder + " " + folder.isOpen());
-		idleManager.watch(folder);
+		var watched = watcher.get(Encode.encode(folder));
+		if (watched != null)
+		{
+			idleManager.watch(watched);
+		}
 		LOGGER.exiting(this.getClass().getCanonicalName(), folder.getName() + "::rewatch");
 	}
 
+	//	the server told us (via NOTIFY) that a folder we aren't watching has changed
+
+	void folderChanged(String name) throws MessagingException
+	{
+		var fid = Encode.encode(store.getFolder(name));
+		if (watcher.get(fid) == null)
+		{
+			syncFolder(fid, false);
+		}
+	}
+
 	//	synch methods
 
-	private Delta synchronizeFolder(Folder folder) throws Exception
+	//	synchronize a folder -- the folder's structure (expunged messages, flag changes) is applied first,
+	//	then the headers of messages we don't have headers for are fetched and applied in chunks, newest first,
+	//	with a FOLDER_SYNCED event per chunk. Returns the delta that records the new counts and sync state of the
+	//	folder, which must only be applied once all the chunks have been applied.
+
+	private Delta synchronizeFolder(IMAPFolder folder, SyncState state, Set<String> vanished) throws Exception
 	{
 		LOGGER.entering(this.getClass().getCanonicalName(), folder.getName() + "::synchronizeFolder");
 
@@ -711,26 +922,77 @@ public class IMAPAdapter extends BaseAdapter implements IAdapter
 		var isStored = query(() -> DFetch.hasFolder(cache.getDefaultModel(), fid));
 
 		var delta = getDelta();
-		//	if we have stored the folder delete its folder counts as they may have changed
-		if (isStored)
+		//	add a new folder -- the counts and sync state of a stored folder are only replaced once all the chunks
+		//	have been applied, so an interrupted sync resumes from the previous sync state
+		if (!isStored)
 		{
-			//  TODO -- should really check that the validity hasn't changed
-			query(() -> DStore.deleteFolderCounts(cache, delta, fid));
+			DStore.addFolder(delta, this, folder);
+		}
+
+		//	get the new sync state before looking at any messages, so anything that happens while we sync
+		//	gets picked up by the next sync
+		var uidValidity = folder.getUIDValidity();
+		var uidNext = folder.getUIDNext();
+		var messageCount = folder.getMessageCount();
+		var condStore = hasCapability(Constants.CONDSTORE);
+		var highestModSeq = condStore ? folder.getHighestModSeq() : -1;
+
+		long[] fetchHeaders;
+		if (isStored && state != null && state.uidValidity == uidValidity && state.hasModSeq() && condStore)
+		{
+			fetchHeaders = incrementalSync(folder, fid, state, vanished, delta);
 		}
-		//	add a new folder
 		else
 		{
-			DStore.addFolder(delta, this, folder);
+			//	if the UID validity has changed then none of the stored UIDs mean anything anymore
+			var stale = isStored && state != null && state.uidValidity != uidValidity;
+			if (stale)
+			{
+				LOGGER.log(Level.INFO, "{0} :: UID validity changed", fid);
+				query(() -> DStore.deleteUIDValidity(cache, delta, fid));
+				delta.addDP(fid, Vocabulary.HAS_UID_VALIDITY, uidValidity);
+			}
+
+			fetchHeaders = fullSync(folder, fid, stale, delta);
 		}
 
-		//	set the new folder counts
-		DStore.addFolderCounts(delta, folder, fid);
+		delta.apply();
+
+		syncHeaders(folder, fid, fetchHeaders);
 
+		var syncState = getDelta();
+		if (isStored)
+		{
+			query(() -> {
+				DStore.deleteFolderCounts(cache, syncState, fid);
+				DStore.deleteSyncState(cache, syncState, fid);
+			});
+		}
+		DStore.addFolderCounts(syncState, folder, fid);
+		DStore.addSyncState(syncState, fid, uidNext, highestModSeq, messageCount);
+
+		//	TODO -- what about stored messages whose headers have changed?
+
+		LOGGER.exiting(this.getClass().getCanonicalName(), folder.getName() + "::synchronizeFolder");
+		return syncState;
+	}
+
+	//	sync a folder by diffing the complete set of UIDs on the server against the stored UIDs -- returns the
+	//	UIDs of the messages we need to fetch headers for
+
+	private long[] fullSync(Folder folder, String fid, boolean stale, Delta delta) throws MessagingException
+	{
 		//  get the stored message IDs and the IMAP message ids
 
 		var stored = query(() -> getStoredMessageIDs(cache, fid));
 		var imap = getIMAPMessageIDs(folder);
 
+		if (stale)
+		{
+			stored.forEach(message -> query(() -> DStore.deleteMessage(cache, delta, fid, message)));
+			stored.clear();
+		}
+
 		//	need to add messages in imap but not stored
 		var addUID = new HashSet<String>();
 		imap.forEach(mid -> {
@@ -751,7 +1013,6 @@ public class IMAPAdapter extends BaseAdapter implements IAdapter
 		});
 
 		removeUID.forEach(message -> query(() -> DStore.deleteMessage(cache, delta, fid, message)));
-		addUID.forEach(message -> DStore.addMessage(delta, fid, message));
 
 		//  get message headers for message ids that we don't have headers for
 		var withHeaders = query(() -> getStoredMessagesWithHeadersIDs(cache, id, fid));
@@ -761,39 +1022,135 @@ public class IMAPAdapter extends BaseAdapter implements IAdapter
 
 		var fetchHeaders = new HashSet<>(stored);
 		fetchHeaders.removeAll(withHeaders);
+		fetchHeaders.removeAll(removeUID);
 		fetchHeaders.addAll(addUID);
 
-		if (!fetchHeaders.isEmpty())
+		var uids = new long[fetchHeaders.size()];
+		int i = 0;
+		for (String mid : fetchHeaders)
 		{
-			Message[] msgs = Encode.U(folder, addUID);
-			FetchProfile fp = new FetchProfile();
-			//	TODO: headers vs envelope?
-			fp.add(FetchProfile.Item.ENVELOPE);
-			fp.add(FetchProfile.Item.FLAGS);
-			fp.add(IMAPFolder.FetchProfileItem.HEADERS);
-			fp.add(UIDFolder.FetchProfileItem.UID);
+			uids[i++] = Encode.uid(mid);
+		}
+
+		return uids;
+	}
+
+	//	sync a folder using CONDSTORE (and QRESYNC if we have it), so we only look at messages that arrived,
+	//	changed, or were expunged since the last sync -- returns the UIDs of the messages that arrived
+
+	private long[] incrementalSync(IMAPFolder folder, String fid, SyncState state, Set<String> vanished,
+								   Delta delta) throws MessagingException
+	{
+		LOGGER.log(Level.INFO, "{0} :: incremental sync from {1}", new Object[]{fid, state});
+
+		//	messages that arrived since the last sync -- note that the UID range n:* always includes the
+		//	last message in the folder, even if its UID is less than n
+		var arrived = new long[0];
+		int numArrived = 0;
+		for (Message message : folder.getMessagesByUID(state.uidNext, UIDFolder.LASTUID))
+		{
+			if (message != null && folder.getUID(message) >= state.uidNext)
+			{
+				if (numArrived == arrived.length)
+				{
+					arrived = Arrays.copyOf(arrived, Math.max(16, numArrived * 2));
+				}
+				arrived[numArrived++] = folder.getUID(message);
+			}
+		}
+
+		//	messages whose flags changed since the last sync
+		if (state.uidNext > 1)
+		{
+			for (Message message : folder.getMessagesByUIDChangedSince(1, state.uidNext - 1, state.highestModSeq))
+			{
+				var mid = Encode.encode(message);
+				if (message.isSet(Flags.Flag.DELETED))
+				{
+					query(() -> DStore.deleteMessage(cache, delta, fid, mid));
+				}
+				else
+				{
+					query(() -> DStore.deleteMessageFlags(cache, delta, mid));
+					DStore.addMessageFlags(delta, message, mid);
+				}
+			}
+		}
+
+		//	messages that were expunged since the last sync -- if QRESYNC didn't tell us which ones, the
+		//	message counts tell us whether there were any, and if so we fall back to diffing UIDs
+		var expunged = vanished;
+		if (expunged == null)
+		{
+			expunged = new HashSet<>();
+			if (folder.getMessageCount() != state.messageCount + numArrived)
+			{
+				var stored = query(() -> getStoredMessageIDs(cache, fid));
+				stored.removeAll(getIMAPMessageIDs(folder));
+				expunged.addAll(stored);
+			}
+		}
+
+		expunged.forEach(mid -> query(() -> DStore.deleteMessage(cache, delta, fid, mid)));
+
+		return Arrays.copyOf(arrived, numArrived);
+	}
+
+	//	fetch and store the headers of messages in chunks, newest first, so the user sees the most recent
+	//	messages first and we never hold more than a chunk's worth of headers in memory or in a transaction
+
+	private void syncHeaders(IMAPFolder folder, String fid, long[] uids) throws MessagingException
+	{
+		Arrays.sort(uids);
+		for (int end = uids.length; end > 0; end -= Constants.SYNC_CHUNK_SIZE)
+		{
+			var chunk = Arrays.copyOfRange(uids, Math.max(0, end - Constants.SYNC_CHUNK_SIZE), end);
+			var msgs = Arrays.stream(folder.getMessagesByUID(chunk)).filter(Objects::nonNull).toArray(Message[]::new);
+			fetchHeaders(folder, msgs);
 
-			folder.fetch(msgs, fp);
+			var delta = getDelta();
+			var event = new EventSetBuilder();
+			var eid = event.newEvent(Vocabulary.FOLDER_SYNCED);
+			event.addOP(eid, Vocabulary.HAS_ACCOUNT, id).addOP(eid, Vocabulary.HAS_FOLDER, fid);
 
+			var mids = new ArrayList<String>(msgs.length);
 			for (Message msg : msgs)
 			{
-				String mid = Encode.encode(msg);
-				if (stored.contains(mid))
+				if (!msg.isSet(Flags.Flag.DELETED))
 				{
-					DStore.deleteMessageFlags(cache, delta, mid);
+					mids.add(Encode.encode(msg));
 				}
-				DStore.addMessageFlags(delta, msg, mid);
-				DStore.addMessageHeaders(delta, msg, mid);
-				//	TODO -- this is gonna be slow -- next to collect them all together and do one fetch
-				//	need to do something smarter than this
-				//DStore.addMessageContent(delta, msg, mid);
 			}
+
+			//	the message may be stored without headers, in which case it may also have flags
+			query(() -> mids.forEach(mid -> DStore.deleteMessageFlags(cache, delta, mid)));
+
+			for (Message msg : msgs)
+			{
+				if (!msg.isSet(Flags.Flag.DELETED))
+				{
+					String mid = Encode.encode(msg);
+					DStore.addMessage(delta, fid, mid);
+					DStore.addMessageFlags(delta, msg, mid);
+					DStore.addMessageHeaders(delta, msg, mid);
+					event.addOP(eid, Vocabulary.HAS_MESSAGE, mid);
+				}
+			}
+
+			applyAndNotify(delta, event);
 		}
+	}
 
-		//	TODO -- what about stored messages whose headers have changed?
+	private static void fetchHeaders(Folder folder, Message[] msgs) throws MessagingException
+	{
+		FetchProfile fp = new FetchProfile();
+		//	TODO: headers vs envelope?
+		fp.add(FetchProfile.Item.ENVELOPE);
+		fp.add(FetchProfile.Item.FLAGS);
+		fp.add(IMAPFolder.FetchProfileItem.HEADERS);
+		fp.add(UIDFolder.FetchProfileItem.UID);
 
-		LOGGER.exiting(this.getClass().getCanonicalName(), folder.getName() + "::synchronizeFolder");
-		return delta;
+		folder.fetch(msgs, fp);
 	}
 
 	//	TODO --- ?? Note: setFlags does not fail if one of the org.knowtiphy.pinkpigmail.messages is deleted
@@ -942,6 +1299,11 @@ public class IMAPAdapter extends BaseAdapter implements IAdapter
 	// handle incoming messages from the IMAP server
 	private class WatchMessageChanges implements MessageChangedListener
 	{
+		//	flag changes are coalesced -- the first change schedules a flush, and later changes join it until it
+		//	runs, so a burst of changes becomes one delta, one refresh of the folder counts and one event
+		private final Set<Message> changed = new LinkedHashSet<>();
+		private boolean flushScheduled = false;
+
 		private boolean isDeleted(Message message) throws MessagingException
 		{
 			try
@@ -959,54 +1321,144 @@ public class IMAPAdapter extends BaseAdapter implements IAdapter
 		@Override
 		public void messageChanged(MessageChangedEvent messageChangedEvent)
 		{
-			LOGGER.log(Level.INFO, "HAVE A MESSAGE CHANGED {0}", messageChangedEvent);
+			LOGGER.log(Level.FINE, "HAVE A MESSAGE CHANGED {0}", messageChangedEvent);
+			resources.wakeup();
+
+			if (messageChangedEvent.getMessageChangeType() != MessageChangedEvent.FLAGS_CHANGED)
+			{
+				//	TODO -- have to handle this case
+				LOGGER.info("XXXXXXXXXXXXXXXXXXXXXXXXXXXXX---WTF -- the envelope changed????");
+				return;
+			}
 
 			var folder = (Folder) messageChangedEvent.getSource();
-			var message = messageChangedEvent.getMessage();
+			synchronized (this)
+			{
+				changed.add(messageChangedEvent.getMessage());
+				if (flushScheduled)
+				{
+					return;
+				}
+				flushScheduled = true;
+			}
+
+			resources.getScheduler().schedule(() -> addEventWork(() -> flush(folder)),
+					Constants.FLAG_COALESCE_MILLIS, TimeUnit.MILLISECONDS);
+		}
+
+		private Triple<Folder, Delta, EventSetBuilder> flush(Folder folder) throws MessagingException
+		{
+			Message[] messages;
+			synchronized (this)
+			{
+				messages = changed.toArray(new Message[0]);
+				changed.clear();
+				flushScheduled = false;
+			}
+
+			LOGGER.log(Level.INFO, "flags changed for {0} messages", messages.length);
 
+			var fid = Encode.encode(folder);
 			var delta = getDelta();
 			var event = new EventSetBuilder();
 			var eid = event.newEvent(Vocabulary.MESSAGE_FLAGS_CHANGED);
-			event.addOP(eid, Vocabulary.HAS_ACCOUNT, id);
+			event.addOP(eid, Vocabulary.HAS_ACCOUNT, id).addOP(eid, Vocabulary.HAS_FOLDER, fid);
 
-			addEventWork(() ->
-			{
-				var fid = Encode.encode(folder);
-				if (messageChangedEvent.getMessageChangeType() == MessageChangedEvent.FLAGS_CHANGED)
-				{
-					event.addOP(eid, Vocabulary.HAS_FOLDER, fid);
+			//	message flag changing can indicate that folder counts have changed
+			query(() -> DStore.deleteFolderCounts(cache, delta, fid));
+			DStore.addFolderCounts(delta, folder, fid);
 
-					//	message flag changing can indicate that folder counts have changed
-					query(() -> DStore.deleteFolderCounts(cache, delta, fid));
-					DStore.addFolderCounts(delta, folder, fid);
+			//	the new flags came with the change, but we may need the UIDs of the messages -- get them in one go
+			FetchProfile fp = new FetchProfile();
+			fp.add(UIDFolder.FetchProfileItem.UID);
+			folder.fetch(messages, fp);
 
-					//	as long as the change is not a delete, adjust the flags (deletes are handled
-					//	in WatchCountChanges.messagesRemoved
-					if (!isDeleted(message))
-					{
-						String mid = Encode.encode(message);
-						query(() -> DStore.deleteMessageFlags(cache, delta, mid));
-						DStore.addMessageFlags(delta, message, mid);
-						event.addOP(eid, Vocabulary.HAS_MESSAGE, mid);
-					}
-				}
-				else
+			//	as long as the change is not a delete, adjust the flags (deletes are handled
+			//	in WatchCountChanges.messagesRemoved
+			var mids = new HashMap<String, Message>();
+			for (Message message : messages)
+			{
+				if (!isDeleted(message))
 				{
-					//	TODO -- have to handle this case
-					LOGGER.info("XXXXXXXXXXXXXXXXXXXXXXXXXXXXX---WTF -- the envelope changed????");
+					mids.put(Encode.encode(message), message);
 				}
+			}
 
-				return new Triple<>(folder, delta, event);
-			});
+			query(() -> mids.keySet().forEach(mid -> DStore.deleteMessageFlags(cache, delta, mid)));
+			for (var entry : mids.entrySet())
+			{
+				DStore.addMessageFlags(delta, entry.getValue(), entry.getKey());
+				event.addOP(eid, Vocabulary.HAS_MESSAGE, entry.getKey());
+			}
+
+			return new Triple<>(folder, delta, event);
 		}
 	}
 
 	private class WatchCountChanges extends MessageCountAdapter
 	{
+		//	the UIDs of the messages in the folder being watched -- only touched by event work, so it is kept
+		//	in step with the order of the events
+		private final UIDIndex index;
+
+		WatchCountChanges(UIDIndex index)
+		{
+			this.index = index;
+		}
+
+		//	we cannot ask the server for the UIDs of expunged messages, so get them from the message numbers
+		//	of the expunged messages, or if the index can't resolve them, compute the folder's stored - imap
+		//	messages and rebuild the index
+
+		private Collection<String> getRemovedIDs(Folder folder, String fid, MessageCountEvent e)
+				throws MessagingException
+		{
+			var messages = e.getMessages();
+			var msgnums = new int[messages.length];
+			for (int i = 0; i < messages.length; i++)
+			{
+				msgnums[i] = messages[i].getMessageNumber();
+			}
+
+			var deleted = new HashSet<String>();
+
+			var uids = index.remove(msgnums, e.isRemoved());
+			if (uids != null)
+			{
+				for (long uid : uids)
+				{
+					deleted.add(Encode.encode(folder, uid));
+				}
+				return deleted;
+			}
+
+			LOGGER.log(Level.INFO, "{0} :: UID index out of step with the folder", fid);
+
+			index.rebuild(folder);
+			var imap = new HashSet<String>();
+			for (long uid : index.uids())
+			{
+				imap.add(Encode.encode(folder, uid));
+			}
+
+			//  we need to remove messages in the set (stored - folder)
+			var stored = query(() -> getStoredMessageIDs(cache, fid));
+			stored.forEach(mid ->
+			{
+				if (!imap.contains(mid))
+				{
+					deleted.add(mid);
+				}
+			});
+
+			return deleted;
+		}
+
 		@Override
 		public void messagesRemoved(MessageCountEvent e)
 		{
 			LOGGER.log(Level.INFO, "WatchCountChanges::messagesRemoved {0}", e.getMessages().length);
+			resources.wakeup();
 
 			//	TODO-- ASSUMING this folder is the same for all messages?
 			var folder = (Folder) e.getSource();
@@ -1025,23 +1477,7 @@ public class IMAPAdapter extends BaseAdapter implements IAdapter
 				DStore.addFolderCounts(delta, folder, fid);
 				query(() -> DStore.deleteFolderCounts(cache, delta, fid));
 
-				//	we cannot loop through the messages to get the ids of the deleted messages
-				//	so we have to compute folder's stored - imap messages
-
-				var stored = getStoredMessageIDs(cache, fid);
-				var imap = getIMAPMessageIDs(folder);
-				var deleted = new HashSet<String>();
-
-				//  we need to remove messages in the set (stored - folder)
-				stored.forEach(mid ->
-				{
-					if (!imap.contains(mid))
-					{
-						deleted.add(mid);
-					}
-				});
-
-				deleted.forEach(mid -> {
+				getRemovedIDs(folder, fid, e).forEach(mid -> {
 					query(() -> DStore.deleteMessage(cache, delta, fid, mid));
 					event.addOP(eid, Vocabulary.HAS_MESSAGE, mid);
 				});
@@ -1054,6 +1490,7 @@ public class IMAPAdapter extends BaseAdapter implements IAdapter
 		public void messagesAdded(MessageCountEvent e)
 		{
 			LOGGER.log(Level.INFO, "messagesAdded {0}", Arrays.toString(e.getMessages()));
+			resources.wakeup();
 
 			//	TODO-- ASSUMING this  is the same for all messages?
 			var folder = (Folder) e.getSource();
@@ -1071,17 +1508,25 @@ public class IMAPAdapter extends BaseAdapter implements IAdapter
 				DStore.addFolderCounts(delta, folder, fid);
 				query(() -> DStore.deleteFolderCounts(cache, delta, fid));
 
-				for (Message message : e.getMessages())
+				//	one FETCH of the headers of all the new messages, so listeners hear about the new messages
+				//	after a single round trip -- the content is loaded ahead in the background
+				var messages = e.getMessages();
+				fetchHeaders(folder, messages);
+
+				var mids = new ArrayList<String>(messages.length);
+				for (Message message : messages)
 				{
-					fetchMessages(folder, new Message[]{message});
+					index.put(message.getMessageNumber(), ((UIDFolder) folder).getUID(message));
 					var mid = Encode.encode(message);
 					DStore.addMessage(delta, fid, mid);
 					DStore.addMessageFlags(delta, message, mid);
 					DStore.addMessageHeaders(delta, message, mid);
-					DStore.addMessageContent(delta, message, mid);
 					event.addOP(eid, Vocabulary.HAS_MESSAGE, mid);
+					mids.add(mid);
 				}
 
+				loadAheadService.submit(fid, () -> load(fid, mids));
+
 				return new Triple<>(folder, delta, event);
 			});
 		}
@@ -0,0 +1,152 @@
+package org.knowtiphy.babbage.storage.IMAP;
+
+import com.sun.mail.imap.IdleManager;
+
+import javax.mail.Session;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+//	threads shared by all IMAP accounts -- one IDLE manager (a single selector over the watched folders of every
+//	account), one executor for javax mail events, one scheduler (for pinging etc), and bounded content and load ahead pools that are
+//	fair between accounts. Accounts acquire the resources when they are created and release them when they are
+//	closed, and the last release shuts everything down.
+
+public class IMAPResources
+{
+	private static final Logger LOGGER = Logger.getLogger(IMAPResources.class.getName());
+
+	private static IMAPResources resources;
+	private static int users = 0;
+
+	//	the event executor runs the (application wide) javax mail event dispatcher and the IDLE manager's select
+	//	loop, with room to spare
+	private final ExecutorService eventService = Executors.newFixedThreadPool(4, daemon("imap-events"));
+	//	runs the pingers, and the flushes of coalesced flag changes
+	private final ScheduledExecutorService scheduler =
+			Executors.newSingleThreadScheduledExecutor(daemon("imap-scheduler"));
+	private final FairExecutor contentService = new FairExecutor("imap-content", 4);
+	private final FairExecutor loadAheadService = new FairExecutor("imap-load-ahead", 4);
+	private IdleManager idleManager;
+
+	//	metrics
+	private final AtomicLong wakeups = new AtomicLong();
+
+	static synchronized IMAPResources acquire()
+	{
+		if (resources == null)
+		{
+			resources = new IMAPResources();
+		}
+		users++;
+		return resources;
+	}
+
+	static synchronized void release()
+	{
+		if (--users == 0)
+		{
+			resources.shutdown();
+			resources = null;
+		}
+	}
+
+	//	the IDLE manager only uses the session for its properties and debugging, so the first one will do
+
+	synchronized IdleManager getIdleManager(Session session) throws IOException
+	{
+		if (idleManager == null)
+		{
+			idleManager = new IdleManager(session, eventService);
+		}
+		return idleManager;
+	}
+
+	ExecutorService getEventService()
+	{
+		return eventService;
+	}
+
+	ScheduledExecutorService getScheduler()
+	{
+		return scheduler;
+	}
+
+	ExecutorService newContentLane()
+	{
+		return contentService.lane();
+	}
+
+	ExecutorService newLoadAheadLane()
+	{
+		return loadAheadService.lane();
+	}
+
+	//	record that a watched folder woke up with something to tell us
+
+	void wakeup()
+	{
+		wakeups.incrementAndGet();
+	}
+
+	long getWakeups()
+	{
+		return wakeups.get();
+	}
+
+	int getThreadCount()
+	{
+		return ((ThreadPoolExecutor) eventService).getPoolSize() + 1
+				+ contentService.getThreadCount() + loadAheadService.getThreadCount();
+	}
+
+	private void shutdown()
+	{
+		LOGGER.log(Level.INFO, "{0}", this);
+		synchronized (this)
+		{
+			if (idleManager != null)
+			{
+				idleManager.stop();
+			}
+		}
+		scheduler.shutdown();
+		contentService.shutdown();
+		loadAheadService.shutdown();
+		eventService.shutdown();
+		try
+		{
+			eventService.awaitTermination(10, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static java.util.concurrent.ThreadFactory daemon(String name)
+	{
+		var count = new AtomicInteger();
+		return r -> {
+			var thread = new Thread(r, name + "-" + count.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	@Override
+	public String toString()
+	{
+		return "IMAPResources{" +
+				"threads=" + getThreadCount() +
+				", wakeups=" + getWakeups() +
+				'}';
+	}
+}
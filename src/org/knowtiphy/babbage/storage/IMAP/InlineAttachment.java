@@ -4,9 +4,9 @@ public class InlineAttachment extends Attachment
 {
 	final String localName;
 
-	public InlineAttachment(String id, String mimeType, byte[] content, String localName)
+	public InlineAttachment(String id, String mimeType, String blob, long size, String localName)
 	{
-		super(id, mimeType, content);
+		super(id, mimeType, blob, size);
 		this.localName = localName;
 	}
 }
\ No newline at end of file
@@ -1,38 +1,69 @@
 package org.knowtiphy.babbage.storage.IMAP;
 
-import org.apache.commons.io.IOUtils;
-import org.knowtiphy.utils.ThrowingConsumer;
+import org.knowtiphy.babbage.storage.BlobStore;
 
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
 import javax.mail.Part;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimePart;
+import javax.mail.internet.MimeUtility;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 
 /**
+ * Extract the content of a message in a single walk over its MIME tree -- attachments are decoded straight into
+ * the blob store as they are found, and the only thing held in memory is the text of the message (up to a cap).
+ * If attachments are lazy then only their metadata (including their IMAP section) is recorded, and their content
+ * is left on the server until someone asks for it.
+ * <p>
+ * Extraction is in two steps so the content of many messages can be fetched together: structure() walks the
+ * BODYSTRUCTURE of the message, sections() says which sections it then needs, and process() builds the content
+ * from those sections (if they have been fetched) or fetches them itself (if they haven't).
+ *
  * @author graham
  */
 public class MessageContent
 {
 	private final Message message;
 	private final boolean allowHTML;
+	private final BlobStore blobs;
+	private final int maxTextSize;
+	private final boolean lazyAttachments;
 	private int count = 0;
+	//	the IMAP section of every part we have walked, and the inline parts we still need to store
+	private final Map<Part, String> sections = new IdentityHashMap<>();
+	private final List<Part> inlineParts = new ArrayList<>();
+	private Part textPart;
 	String mid;
 	String content;
 	String mimeType;
 	Collection<InlineAttachment> inlineAttachments = new LinkedList<>();
 	Collection<RegularAttachment> regularAttachments = new LinkedList<>();
 
-	public MessageContent(Message message, String mid, boolean allowHTML)
+	public MessageContent(Message message, String mid, boolean allowHTML, BlobStore blobs, int maxTextSize,
+						  boolean lazyAttachments)
 	{
 		assert message != null;
 		this.mid = mid;
 		this.message = message;
 		this.allowHTML = allowHTML;
+		this.blobs = blobs;
+		this.maxTextSize = maxTextSize;
+		this.lazyAttachments = lazyAttachments;
 	}
 
 	private static boolean isAttachment(Part part) throws MessagingException
@@ -73,14 +104,42 @@ public class MessageContent
 		}
 	}
 
+	//	the IMAP section of the i'th part of a multipart with the given section -- the top level multipart
+	//	of a message has the empty section
+
+	private static String section(String section, int i)
+	{
+		return section.isEmpty() ? Integer.toString(i + 1) : section + "." + (i + 1);
+	}
+
 	/**
-	 * Return the primary text content of the message.
+	 * Walk the part, storing any attachments found in it, and return the primary text content of the part.
 	 */
-	private Part getText(Part part) throws MessagingException, IOException
+	private Part walk(Part part, String section) throws MessagingException, IOException
 	{
-		if (isAttachment(part))
+		//	a message that isn't a multipart has its body in section 1
+		sections.put(part, section.isEmpty() ? "1" : section);
+
+		String disposition = part.getDisposition();
+		if (disposition != null)
 		{
-			return null;
+			if (disposition.equalsIgnoreCase(Part.ATTACHMENT))
+			{
+				//	an attachment is stored whole, so there is no need to look inside it
+				addAttachment(part, section);
+				return null;
+			}
+			else if (disposition.equalsIgnoreCase(Part.INLINE))
+			{
+				if (hasValidCID(part))
+				{
+					inlineParts.add(part);
+				}
+				else
+				{
+					addAttachment(part, section);
+				}
+			}
 		}
 
 		if (part.isMimeType(Mime.TEXT))
@@ -90,92 +149,77 @@ public class MessageContent
 
 		if (part.isMimeType(Mime.MULTIPART_ALTERNATIVE))
 		{
-			//System.err.println("MULTI/ALT");
 			// prefer html text over plain text
 			Multipart mp = (Multipart) part.getContent();
+			Part chosen = null;
 			Part text = null;
 			for (int i = 0; i < mp.getCount(); i++)
 			{
 				Part bp = mp.getBodyPart(i);
-				if (!isAttachment(bp))
+				//	keep walking after we have chosen the text so we see every attachment
+				Part tp = walk(bp, section(section, i));
+				if (chosen == null && !isAttachment(bp))
 				{
 					if (bp.isMimeType(Mime.PLAIN))
 					{
 						if (!allowHTML)
 						{
-							return getText(bp);
+							chosen = tp;
 						}
-						text = getText(bp);
-					}
-					else if (bp.isMimeType(Mime.HTML) && allowHTML)
-					{
-						//System.err.println("HTML P = " + bp);
-						return getText(bp);
+						text = tp;
 					}
 					else
 					{
-						return getText(bp);
+						chosen = tp;
 					}
 				}
 			}
 
-			return text;
+			return chosen != null ? chosen : text;
 		}
 		else if (part.isMimeType(Mime.MULTIPART))
 		{
-			//System.err.println("MULTI/REGULAR");
 			Multipart mp = (Multipart) part.getContent();
+			Part chosen = null;
 			Part text = null;
 			for (int i = 0; i < mp.getCount(); i++)
 			{
 				Part p = mp.getBodyPart(i);
-				if (!isAttachment(p))
+				Part bp = walk(p, section(section, i));
+				if (chosen == null && bp != null && !isAttachment(p))
 				{
-					Part bp = getText(p);
-					if (bp != null)
+					if (bp.isMimeType(Mime.PLAIN))
 					{
-						if (bp.isMimeType(Mime.PLAIN))
-						{
-							assert !(bp instanceof Multipart);
-							if (!allowHTML)
-							{
-								return bp;
-							}
-							text = bp;
-						}
-						else if (bp.isMimeType(Mime.HTML) && allowHTML)
+						assert !(bp instanceof Multipart);
+						if (!allowHTML)
 						{
-							assert !(bp instanceof Multipart);
-							return bp;
+							chosen = bp;
 						}
+						text = bp;
+					}
+					else if (bp.isMimeType(Mime.HTML) && allowHTML)
+					{
+						assert !(bp instanceof Multipart);
+						chosen = bp;
 					}
 				}
 			}
 
-			return text;
+			return chosen != null ? chosen : text;
 		}
 
 		return null;
 	}
 
-	private static void walk(Part part, ThrowingConsumer<? super Part, ? extends Exception> process) throws Exception
+	private static String mimeType(Part part) throws MessagingException
 	{
-		process.apply(part);
-
-		if (part.isMimeType(Mime.MULTIPART))
-		{
-			Multipart mp = (Multipart) part.getContent();
-			for (int i = 0; i < mp.getCount(); i++)
-			{
-				Part p = mp.getBodyPart(i);
-				walk(p, process);
-			}
-		}
+		return part.getContentType().split(";")[0];
 	}
 
-	private static String mimeType(Part part) throws MessagingException
+	private static String encoding(Part part) throws MessagingException
 	{
-		return part.getContentType().split(";")[0];
+		String encoding = part instanceof MimePart ? ((MimePart) part).getEncoding() : null;
+		return encoding == null ? "7bit" : encoding;
 	}
 
 	static String fileName(Part part) throws MessagingException
@@ -207,59 +251,138 @@ public class MessageContent
 		return fileName;
 	}
 
-	private void addAttachment(Part part) throws MessagingException, IOException
+	//	the decoded content of a part -- from its section if we have fetched it, otherwise from the server
+
+	private InputStream content(Part part, Map<String, byte[]> fetched) throws MessagingException
+	{
+		byte[] raw = fetched.get(sections.get(part));
+		return raw == null ? part.getInputStream() : MimeUtility.decode(new ByteArrayInputStream(raw), encoding(part));
+	}
+
+	//	decode the content of a part straight into the blob store and return the id of its blob
+
+	private String store(Part part, Map<String, byte[]> fetched) throws MessagingException, IOException
+	{
+		try (InputStream in = content(part, fetched))
+		{
+			return blobs.put(in);
+		}
+	}
+
+	private void addAttachment(Part part, String section) throws MessagingException, IOException
 	{
+		if (lazyAttachments)
+		{
+			//	the size is the size of the (encoded) content on the server, and a message that isn't a multipart
+			//	has its body in section 1
+			regularAttachments.add(new RegularAttachment(Encode.encode(message, "" + count++), mimeType(part),
+					null, part.getSize(), fileName(part), section.isEmpty() ? "1" : section, encoding(part)));
+			return;
+		}
+
+		String blob = store(part, Map.of());
 		regularAttachments.add(new RegularAttachment(Encode.encode(message, "" + count++),
-				mimeType(part), IOUtils.toByteArray(part.getInputStream()), fileName(part)));
+				mimeType(part), blob, blobs.size(blob), fileName(part)));
+	}
+
+	private void addInlineAttachment(Part part, Map<String, byte[]> fetched) throws MessagingException, IOException
+	{
+		String cidName = cid(part.getHeader("Content-Id")[0]);
+		String blob = store(part, fetched);
+		inlineAttachments.add(new InlineAttachment(Encode.encode(message, cidName), mimeType(part),
+				blob, blobs.size(blob), "cid:" + cidName));
 	}
 
-	private void parseAttachments() throws Exception
+	//	read (at most maxTextSize characters of) the decoded text of a part
+
+	private String readText(Part part, Map<String, byte[]> fetched) throws MessagingException, IOException
 	{
-		Collection<Part> inline = new LinkedList<>();
-		walk(message, part ->
+		String charset = new ContentType(part.getContentType()).getParameter("charset");
+		String javaCharset = MimeUtility.javaCharset(charset == null ? "us-ascii" : charset);
+
+		InputStream in = content(part, fetched);
+		Reader reader;
+		try
+		{
+			reader = new InputStreamReader(in, javaCharset);
+		} catch (UnsupportedEncodingException ex)
+		{
+			//	better something readable than nothing
+			reader = new InputStreamReader(in, "ISO-8859-1");
+		}
+
+		try (reader)
 		{
-			String disposition = part.getDisposition();
-			if (disposition != null)
+			StringBuilder text = new StringBuilder();
+			char[] buffer = new char[8192];
+			int n;
+			while (text.length() < maxTextSize
+					&& (n = reader.read(buffer, 0, Math.min(buffer.length, maxTextSize - text.length()))) != -1)
 			{
-				if (disposition.equalsIgnoreCase(Part.ATTACHMENT))
-				{
-					addAttachment(part);
-				}
-				else if (disposition.equalsIgnoreCase(Part.INLINE))
-				{
-					if (hasValidCID(part))
-					{
-						inline.add(part);
-					}
-					else
-					{
-						addAttachment(part);
-					}
-				}
+				text.append(buffer, 0, n);
 			}
-		});
+			return text.toString();
+		}
+	}
 
-		for (Part part : inline)
+	//	walk the structure of the message, recording its attachments and choosing its text part
+
+	MessageContent structure() throws MessagingException, IOException
+	{
+		textPart = walk(message, "");
+		return this;
+	}
+
+	//	the sections of the text part and inline parts, at most maxSize bytes each, that process() will read --
+	//	bigger parts are left to be streamed when they are read
+
+	Collection<String> sections(int maxSize) throws MessagingException
+	{
+		var needed = new ArrayList<String>();
+		if (textPart != null)
+		{
+			addSection(needed, textPart, maxSize);
+		}
+		for (Part part : inlineParts)
 		{
-			String cidName = cid(part.getHeader("Content-Id")[0]);
-			inlineAttachments.add(new InlineAttachment(Encode.encode(message, cidName), mimeType(part),
-					IOUtils.toByteArray(part.getInputStream()), "cid:" + cidName));
+			addSection(needed, part, maxSize);
 		}
+		return needed;
 	}
 
-	protected MessageContent process() throws Exception
+	private void addSection(Collection<String> needed, Part part, int maxSize) throws MessagingException
 	{
-		Part part = getText(message);
-		if (part != null)
+		int size = part.getSize();
+		if (size >= 0 && size <= maxSize)
 		{
-			mimeType = mimeType(part);
+			needed.add(sections.get(part));
+		}
+	}
+
+	//	build the content of the message from the raw content of the sections we have fetched for it, fetching
+	//	anything else we need
+
+	MessageContent process(Map<String, byte[]> fetched) throws MessagingException, IOException
+	{
+		for (Part part : inlineParts)
+		{
+			addInlineAttachment(part, fetched);
+		}
+
+		if (textPart != null)
+		{
+			mimeType = mimeType(textPart);
 			//	UGH - store as byte array? What about searching
-			content = part.getContent().toString();
-			parseAttachments();
+			content = readText(textPart, fetched);
 		}
 
 		return this;
 	}
+
+	protected MessageContent process() throws Exception
+	{
+		return structure().process(Map.of());
+	}
 }
 
 //	PartState(Multipart part, int current)
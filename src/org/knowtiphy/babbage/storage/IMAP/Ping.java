@@ -2,6 +2,7 @@ package org.knowtiphy.babbage.storage.IMAP;
 
 import javax.mail.Folder;
 import javax.mail.MessagingException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -12,32 +13,37 @@ public class Ping implements Runnable
 	private static final Logger LOGGER = Logger.getLogger(Ping.class.getName());
 
 	private final IMAPAdapter adapter;
-	private final Folder folder;
+	private final FolderWatcher watcher;
 
-	public Ping(IMAPAdapter adapter, Folder folder)
+	public Ping(IMAPAdapter adapter, FolderWatcher watcher)
 	{
 		this.adapter = adapter;
-		this.folder = folder;
+		this.watcher = watcher;
 	}
 
+	//	ping every watched folder, not just the inbox, so a dropped IDLE on any of them gets noticed and re-armed
+
 	@Override
 	public void run()
 	{
-		try
-		{
-			LOGGER.info("PingThread :: Pinging server");
-			folder.getMessageCount();
-			adapter.rewatch(folder);
-		}
-		catch (MessagingException ex)
-		{
-			System.out.println("PING THREAD ISSUE");
-			ex.printStackTrace();
-		}
-		catch (Throwable ex)
+		LOGGER.info("PingThread :: Pinging server");
+		for (Folder folder : watcher.watched())
 		{
-			LOGGER.info("PingThread :: Exiting");
-			return;
+			try
+			{
+				folder.getMessageCount();
+				adapter.rewatch(folder);
+			}
+			catch (MessagingException ex)
+			{
+				LOGGER.log(Level.WARNING, "PingThread :: Pinging {0} failed :: {1}",
+						new Object[]{folder.getFullName(), ex.getLocalizedMessage()});
+			}
+			catch (Throwable ex)
+			{
+				LOGGER.info("PingThread :: Exiting");
+				return;
+			}
 		}
 //			catch (StoreClosedException ex)
 //			{
@@ -3,10 +3,21 @@ package org.knowtiphy.babbage.storage.IMAP;
 public class RegularAttachment extends Attachment
 {
 	final String fileName;
+	//	the IMAP section of the attachment and its transfer encoding, so its content can be fetched later
+	final String section;
+	final String encoding;
 
-	public RegularAttachment(String id, String mimeType, byte[] content, String fileName)
+	public RegularAttachment(String id, String mimeType, String blob, long size, String fileName)
 	{
-		super(id, mimeType, content);
+		this(id, mimeType, blob, size, fileName, null, null);
+	}
+
+	public RegularAttachment(String id, String mimeType, String blob, long size, String fileName,
+							 String section, String encoding)
+	{
+		super(id, mimeType, blob, size);
 		this.fileName = fileName;
+		this.section = section;
+		this.encoding = encoding;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,124 @@
+package org.knowtiphy.babbage.storage.IMAP;
+
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.BODY;
+import com.sun.mail.imap.protocol.FLAGS;
+import com.sun.mail.imap.protocol.FetchResponse;
+import com.sun.mail.imap.protocol.UID;
+import com.sun.mail.util.ByteArray;
+
+import javax.mail.MessagingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.TreeSet;
+
+//	fetch the raw (still transfer encoded) content of some sections of many messages in as few round trips as
+//	possible -- messages that need the same sections (nearly all of them in practice, e.g. just section 1) share
+//	one UID FETCH of BODY.PEEK[section] items.
+
+public class SectionFetch
+{
+	//	fetch the given sections of the messages with the given UIDs, returning a map from UIDs to the content of
+	//	each section -- sections the server didn't return are left out, and are fetched when they are read
+
+	static Map<Long, Map<String, byte[]>> fetch(IMAPFolder folder, Map<Long, Collection<String>> wanted)
+			throws MessagingException
+	{
+		var groups = new HashMap<Set<String>, List<Long>>();
+		wanted.forEach((uid, sections) -> {
+			if (!sections.isEmpty())
+			{
+				groups.computeIfAbsent(new TreeSet<>(sections), k -> new ArrayList<>()).add(uid);
+			}
+		});
+
+		var fetched = new HashMap<Long, Map<String, byte[]>>();
+		for (var group : groups.entrySet())
+		{
+			fetch(folder, group.getValue(), group.getKey(), fetched);
+		}
+
+		return fetched;
+	}
+
+	private static void fetch(IMAPFolder folder, List<Long> uids, Set<String> sections,
+							  Map<Long, Map<String, byte[]>> fetched) throws MessagingException
+	{
+		var items = new StringJoiner(" ", "(", ")");
+		sections.forEach(section -> items.add("BODY.PEEK[" + section + "]"));
+		var command = "UID FETCH " + uidSet(uids) + " " + items;
+
+		folder.doCommand(protocol -> {
+			Response[] responses = protocol.command(command, null);
+			Response response = responses[responses.length - 1];
+			if (response.isOK())
+			{
+				for (int i = 0; i < responses.length - 1; i++)
+				{
+					if (!(responses[i] instanceof FetchResponse))
+					{
+						continue;
+					}
+
+					var fr = (FetchResponse) responses[i];
+					var uid = fr.getItem(UID.class);
+					var bodies = new HashMap<String, byte[]>();
+					for (int j = 0; j < fr.getItemCount(); j++)
+					{
+						if (fr.getItem(j) instanceof BODY)
+						{
+							var body = (BODY) fr.getItem(j);
+							ByteArray data = body.getByteArray();
+							if (data != null)
+							{
+								bodies.put(body.getSection(),
+										Arrays.copyOfRange(data.getBytes(), data.getStart(), data.getStart() + data.getCount()));
+							}
+						}
+					}
+
+					if (uid != null && !bodies.isEmpty())
+					{
+						fetched.computeIfAbsent(uid.uid, k -> new HashMap<>()).putAll(bodies);
+						//	we have consumed the response, unless it also tells javax mail about changed flags
+						if (fr.getItem(FLAGS.class) == null)
+						{
+							responses[i] = null;
+						}
+					}
+				}
+			}
+
+			protocol.notifyResponseHandlers(responses);
+			protocol.handleResult(response);
+			return null;
+		});
+	}
+
+	//	a compact IMAP sequence set for some UIDs, e.g. 1:4,7,9:10
+
+	private static String uidSet(List<Long> uids)
+	{
+		long[] sorted = uids.stream().mapToLong(Long::longValue).sorted().toArray();
+		var set = new StringJoiner(",");
+		int i = 0;
+		while (i < sorted.length)
+		{
+			int j = i;
+			while (j + 1 < sorted.length && sorted[j + 1] == sorted[j] + 1)
+			{
+				j++;
+			}
+			set.add(i == j ? Long.toString(sorted[i]) : sorted[i] + ":" + sorted[j]);
+			i = j + 1;
+		}
+		return set.toString();
+	}
+}
@@ -0,0 +1,111 @@
+package org.knowtiphy.babbage.storage.IMAP;
+
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.BODY;
+import com.sun.mail.util.ByteArray;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import java.io.IOException;
+import java.io.InputStream;
+
+//	an input stream over the raw (still transfer encoded) content of one section of a message, fetched from the
+//	server a chunk at a time with partial FETCHes, so a large attachment is never held in memory.
+//
+//	note: the message number is looked up for every chunk since javax mail renumbers messages on expunges.
+
+public class SectionInputStream extends InputStream
+{
+	private final IMAPFolder folder;
+	private final Message message;
+	private final String section;
+	private final int chunkSize;
+
+	//	the offset in the section of the next chunk to fetch
+	private int offset = 0;
+	private boolean eof = false;
+
+	private byte[] buffer;
+	private int pos = 0;
+	private int count = 0;
+
+	SectionInputStream(IMAPFolder folder, Message message, String section, int chunkSize)
+	{
+		this.folder = folder;
+		this.message = message;
+		this.section = section;
+		this.chunkSize = chunkSize;
+	}
+
+	//	fetch the next chunk -- returns false at the end of the section
+
+	private boolean fill() throws IOException
+	{
+		if (eof)
+		{
+			return false;
+		}
+
+		BODY body;
+		try
+		{
+			body = (BODY) folder.doCommand(protocol ->
+					protocol.peekBody(message.getMessageNumber(), section, offset, chunkSize));
+		}
+		catch (MessagingException ex)
+		{
+			throw new IOException(ex);
+		}
+
+		ByteArray data = body == null ? null : body.getByteArray();
+		if (data == null || data.getCount() == 0)
+		{
+			eof = true;
+			return false;
+		}
+
+		buffer = data.getBytes();
+		pos = data.getStart();
+		count = data.getStart() + data.getCount();
+		offset += data.getCount();
+		//	a short chunk is the last one, so save a round trip
+		eof = data.getCount() < chunkSize;
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		if (pos >= count && !fill())
+		{
+			return -1;
+		}
+
+		return buffer[pos++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if (len == 0)
+		{
+			return 0;
+		}
+
+		if (pos >= count && !fill())
+		{
+			return -1;
+		}
+
+		int n = Math.min(len, count - pos);
+		System.arraycopy(buffer, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public int available()
+	{
+		return count - pos;
+	}
+}
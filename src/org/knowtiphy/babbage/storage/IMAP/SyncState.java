@@ -0,0 +1,38 @@
+package org.knowtiphy.babbage.storage.IMAP;
+
+//	the per folder synchronization state remembered in the cache from the last sync of a folder
+
+public class SyncState
+{
+	final long uidValidity;
+	final long uidNext;
+	//	-1 if the server did not support CONDSTORE when we last synced
+	final long highestModSeq;
+	//	the message count when the sync state was taken -- not the folder's current count, which changes as IDLE
+	//	tells us about arrivals without moving uidNext on
+	final long messageCount;
+
+	public SyncState(long uidValidity, long uidNext, long highestModSeq, long messageCount)
+	{
+		this.uidValidity = uidValidity;
+		this.uidNext = uidNext;
+		this.highestModSeq = highestModSeq;
+		this.messageCount = messageCount;
+	}
+
+	boolean hasModSeq()
+	{
+		return highestModSeq >= 0;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "SyncState{" +
+				"uidValidity=" + uidValidity +
+				", uidNext=" + uidNext +
+				", highestModSeq=" + highestModSeq +
+				", messageCount=" + messageCount +
+				'}';
+	}
+}
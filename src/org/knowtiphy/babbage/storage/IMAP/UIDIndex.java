@@ -0,0 +1,216 @@
+package org.knowtiphy.babbage.storage.IMAP;
+
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.IMAPResponse;
+
+import javax.mail.FetchProfile;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
+import java.util.Arrays;
+
+//	a map from the message numbers of an open folder to the UIDs of its messages, kept in step with the
+//	messages added to and removed from the folder, so we can work out which messages were expunged without
+//	asking the server or the cache.
+//
+//	note: javax mail does not renumber messages when another client expunges them, it leaves a hole in the
+//	message numbers until this client expunges the folder. Holes are stored as a UID of 0, which is never a
+//	valid UID.
+
+public class UIDIndex
+{
+	private long[] uids;
+	private int size;
+
+	private UIDIndex(long[] uids)
+	{
+		this.uids = uids;
+		this.size = uids.length;
+	}
+
+	//	build the index for an open folder using UID SEARCH ALL, which is much more compact than fetching the UID
+	//	of every message. The folder may have been open for a while, so message numbers need not be sequence
+	//	numbers -- UIDs strictly increase with sequence numbers though, so the nth UID found belongs to the nth
+	//	message javax mail has not seen expunged. If the counts don't agree (something changed under us) fall back
+	//	to fetching the UIDs by message number.
+	static UIDIndex of(IMAPFolder folder) throws MessagingException
+	{
+		synchronized (folder)
+		{
+			//	the server can't send EXPUNGE responses during a UID command, so the search sees a stable folder
+			long[] found = search(folder);
+
+			Message[] messages = folder.getMessages();
+			long[] uids = new long[messages.length];
+			int n = 0;
+			for (Message message : messages)
+			{
+				if (!message.isExpunged())
+				{
+					if (n == found.length)
+					{
+						break;
+					}
+					uids[message.getMessageNumber() - 1] = found[n++];
+				}
+			}
+
+			var index = new UIDIndex(uids);
+			if (n != found.length || n != live(messages))
+			{
+				index.rebuild(folder);
+			}
+
+			return index;
+		}
+	}
+
+	private static long[] search(IMAPFolder folder) throws MessagingException
+	{
+		return (long[]) folder.doCommand(protocol -> {
+			Response[] responses = protocol.command("UID SEARCH ALL", null);
+			Response response = responses[responses.length - 1];
+			long[] found = new long[1024];
+			int n = 0;
+			if (response.isOK())
+			{
+				for (int i = 0; i < responses.length - 1; i++)
+				{
+					if (responses[i] instanceof IMAPResponse && ((IMAPResponse) responses[i]).keyEquals("SEARCH"))
+					{
+						long uid;
+						while ((uid = responses[i].readLong()) != -1)
+						{
+							if (n == found.length)
+							{
+								found = Arrays.copyOf(found, n * 2);
+							}
+							found[n++] = uid;
+						}
+						//	we have consumed the response
+						responses[i] = null;
+					}
+				}
+			}
+
+			protocol.notifyResponseHandlers(responses);
+			protocol.handleResult(response);
+
+			//	servers needn't return the UIDs in order
+			Arrays.sort(found, 0, n);
+			return Arrays.copyOf(found, n);
+		});
+	}
+
+	private static int live(Message[] messages)
+	{
+		int n = 0;
+		for (Message message : messages)
+		{
+			if (!message.isExpunged())
+			{
+				n++;
+			}
+		}
+		return n;
+	}
+
+	//	rebuild the index from the messages javax mail currently knows about -- slow, only used to recover
+	//	when the index gets out of step with the folder
+	synchronized void rebuild(Folder folder) throws MessagingException
+	{
+		Message[] messages = folder.getMessages();
+		FetchProfile fp = new FetchProfile();
+		fp.add(UIDFolder.FetchProfileItem.UID);
+		folder.fetch(messages, fp);
+
+		uids = new long[messages.length];
+		size = 0;
+		for (Message message : messages)
+		{
+			//	expunged messages stay holes -- we can't (and needn't) get their UIDs
+			if (!message.isExpunged())
+			{
+				put(message.getMessageNumber(), ((UIDFolder) folder).getUID(message));
+			}
+		}
+		size = messages.length;
+	}
+
+	//	record the UID of the message with the given message number
+	synchronized void put(int msgnum, long uid)
+	{
+		if (msgnum > uids.length)
+		{
+			uids = Arrays.copyOf(uids, Math.max(msgnum, uids.length * 2));
+		}
+		size = Math.max(size, msgnum);
+		uids[msgnum - 1] = uid;
+	}
+
+	//	remove the messages with the given message numbers and return their UIDs, or null if we don't know the
+	//	UID of one of the messages. If renumbered is true then javax mail has renumbered the remaining messages,
+	//	which also closes up any holes.
+	synchronized long[] remove(int[] msgnums, boolean renumbered)
+	{
+		long[] removed = new long[msgnums.length];
+		int n = 0;
+		for (int msgnum : msgnums)
+		{
+			if (msgnum < 1 || msgnum > size)
+			{
+				return null;
+			}
+
+			long uid = uids[msgnum - 1];
+			if (uid != 0)
+			{
+				removed[n++] = uid;
+			}
+			//	the message was already removed, unless this is a renumbering, when holes get reported again
+			else if (!renumbered)
+			{
+				return null;
+			}
+		}
+
+		for (int msgnum : msgnums)
+		{
+			uids[msgnum - 1] = 0;
+		}
+
+		if (renumbered)
+		{
+			int j = 0;
+			for (int i = 0; i < size; i++)
+			{
+				if (uids[i] != 0)
+				{
+					uids[j++] = uids[i];
+				}
+			}
+			Arrays.fill(uids, j, size, 0);
+			size = j;
+		}
+
+		return Arrays.copyOf(removed, n);
+	}
+
+	//	the UIDs of all the messages in the index
+	synchronized long[] uids()
+	{
+		long[] result = new long[size];
+		int n = 0;
+		for (int i = 0; i < size; i++)
+		{
+			if (uids[i] != 0)
+			{
+				result[n++] = uids[i];
+			}
+		}
+
+		return Arrays.copyOf(result, n);
+	}
+}
@@ -6,6 +6,7 @@ import org.knowtiphy.babbage.storage.exceptions.NoSuchAccountException;
 import org.knowtiphy.babbage.storage.exceptions.StorageException;
 
 import javax.mail.MessagingException;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.concurrent.Future;
 
@@ -16,6 +17,13 @@ public interface IStorage extends AutoCloseable
 {
 	void addListener(IStorageListener listener) throws StorageException;
 
+	//	listen for typed events, rather than events as RDF models
+	void addListener(IStorageEventListener listener) throws StorageException;
+
+	void removeListener(IStorageListener listener);
+
+	void removeListener(IStorageEventListener listener);
+
 	void close();
 
 	Future<?> doOperation(Model operation) throws Exception;
@@ -24,6 +32,14 @@ public interface IStorage extends AutoCloseable
 	//	returns a copy of that result set -- presamably its in mem? does the copy require closing?
 	ResultSet query(String query) throws StorageException;
 
+	//	run a select query, streaming its solutions out of the cache instead of copying them -- a local cursor holds
+	//	a read transaction open until it is closed, and must be used on the thread that created it (see Paging for
+	//	building queries for one page of results at a time)
+	QueryCursor cursor(String query) throws StorageException;
+
+	//	get content stored out of line in the blob store (e.g. attachments), given the id of its blob
+	ByteBuffer getContent(String blobId) throws StorageException;
+
 	//	For time being, stick all extra methods in here
 	//	Most should be done via doOp
 
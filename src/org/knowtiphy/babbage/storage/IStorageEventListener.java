@@ -0,0 +1,10 @@
+package org.knowtiphy.babbage.storage;
+
+import java.util.List;
+
+//	a listener for the typed versions of storage events -- gets the events of an event set in one go
+
+public interface IStorageEventListener
+{
+	void handleEvents(List<StorageEvent> events);
+}
@@ -1,41 +1,298 @@
 package org.knowtiphy.babbage.storage;
 
 import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Fans events out to the storage listeners. Every listener has its own bounded queue and its own thread, so a
+ * slow listener only delays its own events. Events are queued for every listener in the order they are
+ * notified (by the single notifier thread), so each listener still sees every account's events in order.
+ * <p>
+ * When a listener's queue is full the overflow policy (babbage.listenerOverflow) decides what happens:
+ * coalesce (the default) merges the event set into the newest queued event set, drop_oldest drops the oldest
+ * queued event set, and block makes the notifier wait -- which stalls every listener, as before.
+ * <p>
+ * Listeners get event sets either as RDF models (IStorageListener) or as typed events (IStorageEventListener),
+ * and an event set is only turned into a model if some listener wants one.
+ *
  * @author graham
  */
 public class ListenerManager
 {
 	private static final Logger LOGGER = Logger.getLogger(ListenerManager.class.getName());
 
-	private final Collection<IStorageListener> listeners = new ArrayList<>(100);
+	public enum Overflow
+	{
+		COALESCE, DROP_OLDEST, BLOCK
+	}
+
+	private static final int QUEUE_SIZE = Integer.getInteger("babbage.listenerQueueSize", 1000);
+	private static final Overflow OVERFLOW =
+			Overflow.valueOf(System.getProperty("babbage.listenerOverflow", "coalesce").toUpperCase());
+
+	private final Collection<ListenerQueue<Model>> listeners = new CopyOnWriteArrayList<>();
+	private final Collection<ListenerQueue<List<StorageEvent>>> eventListeners = new CopyOnWriteArrayList<>();
 
 	public void addListener(IStorageListener listener)
 	{
-		listeners.add(listener);
+		addListener(listener, QUEUE_SIZE, OVERFLOW);
+	}
+
+	public void addListener(IStorageListener listener, int capacity, Overflow overflow)
+	{
+		//	listeners get their own copy of a model, so a queued model is ours to coalesce into
+		listeners.add(new ListenerQueue<>(listener, listener::handleEvent,
+				m -> ModelFactory.createDefaultModel().add(m), Model::add, capacity, overflow));
+	}
+
+	public void addListener(IStorageEventListener listener)
+	{
+		addListener(listener, QUEUE_SIZE, OVERFLOW);
+	}
+
+	public void addListener(IStorageEventListener listener, int capacity, Overflow overflow)
+	{
+		eventListeners.add(new ListenerQueue<>(listener, listener::handleEvents,
+				ArrayList::new, List::addAll, capacity, overflow));
+	}
+
+	public void removeListener(Object listener)
+	{
+		remove(listeners, listener);
+		remove(eventListeners, listener);
+	}
+
+	private static <T> void remove(Collection<ListenerQueue<T>> queues, Object listener)
+	{
+		for (var queue : queues)
+		{
+			if (queue.listener == listener)
+			{
+				queues.remove(queue);
+				queue.close();
+			}
+		}
+	}
+
+	public void notifyListeners(EventSetBuilder events)
+	{
+		if (events.isEmpty())
+		{
+			return;
+		}
+
+		if (!listeners.isEmpty())
+		{
+			notifyListeners(events.getModel());
+		}
+
+		if (!eventListeners.isEmpty())
+		{
+			notifyEventListeners(events.getEvents());
+		}
 	}
 
+	//	notify listeners of events that are already in one form or the other (e.g. events from a remote storage)
+
 	public void notifyListeners(Model model)
 	{
 		if (!model.isEmpty())
 		{
-			for (IStorageListener listener : listeners)
+			for (var listener : listeners)
+			{
+				listener.add(model);
+			}
+		}
+	}
+
+	public void notifyEventListeners(List<StorageEvent> events)
+	{
+		if (!events.isEmpty())
+		{
+			for (var listener : eventListeners)
+			{
+				listener.add(events);
+			}
+		}
+	}
+
+	public void close()
+	{
+		listeners.forEach(ListenerQueue::close);
+		eventListeners.forEach(ListenerQueue::close);
+	}
+
+	//	an event set waiting to be handled, and when it was queued
+	private static final class Entry<T>
+	{
+		final T events;
+		final long queued;
+
+		Entry(T events, long queued)
+		{
+			this.events = events;
+			this.queued = queued;
+		}
+	}
+
+	private static final class ListenerQueue<T> implements Runnable
+	{
+		private final Object listener;
+		private final Consumer<T> handler;
+		private final UnaryOperator<T> copy;
+		private final BiConsumer<T, T> merge;
+		private final int capacity;
+		private final Overflow overflow;
+		private final Deque<Entry<T>> queue = new ArrayDeque<>();
+		private final Thread thread;
+		private boolean closed = false;
+
+		//	metrics
+		private long delivered;
+		private long coalesced;
+		private long dropped;
+		private int maxDepth;
+		private long lastLagNanos;
+		private long maxLagNanos;
+
+		ListenerQueue(Object listener, Consumer<T> handler, UnaryOperator<T> copy, BiConsumer<T, T> merge,
+					  int capacity, Overflow overflow)
+		{
+			this.listener = listener;
+			this.handler = handler;
+			this.copy = copy;
+			this.merge = merge;
+			this.capacity = capacity;
+			this.overflow = overflow;
+			thread = new Thread(this, "listener-" + listener.getClass().getSimpleName());
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		synchronized void add(T events)
+		{
+			if (closed)
+			{
+				return;
+			}
+
+			if (queue.size() >= capacity)
+			{
+				switch (overflow)
+				{
+					case COALESCE:
+						merge.accept(queue.peekLast().events, events);
+						coalesced++;
+						return;
+					case DROP_OLDEST:
+						queue.poll();
+						dropped++;
+						break;
+					case BLOCK:
+						while (queue.size() >= capacity && !closed)
+						{
+							try
+							{
+								wait();
+							}
+							catch (InterruptedException ex)
+							{
+								Thread.currentThread().interrupt();
+								return;
+							}
+						}
+						break;
+				}
+			}
+
+			queue.add(new Entry<>(copy.apply(events), System.nanoTime()));
+			maxDepth = Math.max(maxDepth, queue.size());
+			notifyAll();
+		}
+
+		synchronized void close()
+		{
+			LOGGER.log(Level.INFO, "{0}", this);
+			closed = true;
+			thread.interrupt();
+			notifyAll();
+		}
+
+		@Override
+		public void run()
+		{
+			while (true)
 			{
+				Entry<T> entry;
+				synchronized (this)
+				{
+					while (queue.isEmpty() && !closed)
+					{
+						try
+						{
+							wait();
+						}
+						catch (InterruptedException ex)
+						{
+							return;
+						}
+					}
+
+					if (closed)
+					{
+						return;
+					}
+
+					entry = queue.poll();
+					lastLagNanos = System.nanoTime() - entry.queued;
+					maxLagNanos = Math.max(maxLagNanos, lastLagNanos);
+					//	wake up a blocked notifier
+					notifyAll();
+				}
+
 				try
 				{
-					listener.handleEvent(model);
+					handler.accept(entry.events);
 				}
 				catch (Exception ex)
 				{
 					ex.printStackTrace();
 					LOGGER.warning("Notifying change listener failed :: " + ex.getLocalizedMessage());
 				}
+
+				synchronized (this)
+				{
+					delivered++;
+				}
 			}
 		}
+
+		@Override
+		public synchronized String toString()
+		{
+			return "ListenerQueue{" +
+					"listener=" + listener.getClass().getName() +
+					", overflow=" + overflow +
+					", depth=" + queue.size() +
+					", maxDepth=" + maxDepth +
+					", delivered=" + delivered +
+					", coalesced=" + coalesced +
+					", dropped=" + dropped +
+					", lastLagMillis=" + lastLagNanos / 1_000_000 +
+					", maxLagMillis=" + maxLagNanos / 1_000_000 +
+					'}';
+		}
 	}
-}
\ No newline at end of file
+}
@@ -3,6 +3,7 @@ package org.knowtiphy.babbage.storage;
 import org.apache.jena.query.Dataset;
 import org.apache.jena.query.QueryExecution;
 import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.ReadWrite;
 import org.apache.jena.query.ResultSet;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
@@ -20,21 +21,23 @@ import org.knowtiphy.babbage.storage.exceptions.MoreThanOneOperationSpecifiedExc
 import org.knowtiphy.babbage.storage.exceptions.NoOperationSpecifiedException;
 import org.knowtiphy.babbage.storage.exceptions.NoSuchAccountException;
 import org.knowtiphy.babbage.storage.exceptions.StorageException;
-import org.knowtiphy.utils.Concurrency;
 import org.knowtiphy.utils.JenaUtils;
+import org.knowtiphy.utils.LoggerUtils;
 import org.knowtiphy.utils.NameSource;
 import org.knowtiphy.utils.OS;
 
 import javax.mail.MessagingException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.Map;
 import java.util.concurrent.BlockingDeque;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -54,12 +57,19 @@ public class LocalStorage implements IStorage
 	private static final Logger LOGGER = Logger.getLogger(LocalStorage.class.getName());
 
 	private static final String CACHE = "cache";
+	private static final String BLOBS = "blobs";
 	private static final String ACCOUNTS_FILE = "accounts.ttl";
 
+	//	in offline first mode (the default) the cache can be queried as soon as it is open, and accounts come
+	//	online and reconcile with their servers in the background -- -Dbabbage.startup=online waits for every
+	//	account to come online before the cache can be used
+	private static final boolean OFFLINE_FIRST = !"online".equals(System.getProperty("babbage.startup"));
+
 	private static final Runnable POISON_PILL = () -> {
 	};
 
-	private final ExecutorService workers = Executors.newFixedThreadPool(4);
+	//	the pool accounts start up in -- one thread per account
+	private final ExecutorService workers;
 
 	//	can't use a SelectBuilder because addFilter can throw an exception
 	private static final String ACCOUNT_TYPE =
@@ -88,21 +98,26 @@ public class LocalStorage implements IStorage
 		adapterClasses.put(Vocabulary.CARDDAV_ACCOUNT, CARDDAVAdapter.class);
 	}
 
-	// map from type vocabulary to a sync method
-	private static final Map<String, Function<String, Future<?>>> syncs = new ConcurrentHashMap<>();
+	// map from account id to the account's map from type vocabulary to a sync method -- kept per account, since
+	//	every account of the same type registers a sync for the same types
+	private final Map<String, Map<String, Function<String, Future<?>>>> syncs = new ConcurrentHashMap<>();
 
 	public static NameSource nameSource = new NameSource(Vocabulary.NBASE);
 
 	private final Dataset cache;
+	private final BlobStore blobs;
 
 	private final ListenerManager listenerManager = new ListenerManager();
 	private final Map<String, IAdapter> adapters = new HashMap<>(100);
+	//	map from account id to the future for the account coming online
+	private final Map<String, Future<?>> online = new ConcurrentHashMap<>(100);
 
 	private final BlockingDeque<Runnable> notificationQ = new LinkedBlockingDeque<>();
 
 	public LocalStorage() throws Exception
 	{
 		LOGGER.entering(this.getClass().getCanonicalName(), "()");
+		long start = System.nanoTime();
 
 		//	data structures shared between accounts
 
@@ -110,6 +125,7 @@ public class LocalStorage implements IStorage
 		Files.createDirectories(databaseLocation);
 
 		cache = TDB2Factory.connectDataset(databaseLocation.toString());
+		blobs = new BlobStore(Paths.get(OS.getDataDir(Babbage.class).toString(), BLOBS));
 
 		//  read accounts -- TODO: this information should all be in a database not a file
 
@@ -120,9 +136,7 @@ public class LocalStorage implements IStorage
 		RDFDataMgr.read(model, Files.newInputStream(Paths.get(OS.getSettingsDir(Babbage.class).toString(), ACCOUNTS_FILE)), Lang.TURTLE);
 		Model accountsModel = createAccountsModel(model);
 
-		//	start all the adapters in parallel and remember any deltas they have
-
-		var futures = new LinkedList<Future<Delta>>();
+		//	create the adapters
 
 		try (QueryExecution qexec = QueryExecutionFactory.create(ACCOUNT_TYPE, accountsModel))
 		{
@@ -137,25 +151,13 @@ public class LocalStorage implements IStorage
 
 				@SuppressWarnings("unchecked")
 				Class<IAdapter> cls = (Class<IAdapter>) adapterClasses.get(type);
-				IAdapter adapter = cls.getConstructor(String.class, String.class,
-						Dataset.class, ListenerManager.class, BlockingDeque.class, Model.class)
-						.newInstance(name, type, cache, listenerManager, notificationQ, accountsModel);
+				IAdapter adapter = cls.getConstructor(String.class, String.class, Dataset.class, BlobStore.class,
+						ListenerManager.class, BlockingDeque.class, Model.class)
+						.newInstance(name, type, cache, blobs, listenerManager, notificationQ, accountsModel);
 				adapters.put(adapter.getId(), adapter);
-
-				futures.add(workers.submit(() -> {
-					var delta = new Delta(cache);
-					adapter.initialize(syncs, delta);
-					return delta;
-				}));
 			}
 		}
 
-		//	merge the adapter triples into one big delta
-		var triples = Delta.merge(cache, Concurrency.wait(futures));
-
-		//	add subclassing triples to the message cache to support RDFS reasoning over the cache
-		Vocabulary.allSubClasses.forEach((sub, sup) -> triples.bothOP(sub, RDFS.subClassOf.toString(), sup));
-
 		//	thread which notifies listeners of changes
 		//noinspection CallToThreadStartDuringObjectConstruction
 		Thread doWork = new Thread(() -> {
@@ -189,17 +191,94 @@ public class LocalStorage implements IStorage
 		doWork.setDaemon(true);
 		doWork.start();
 
-		//	add new triples to the cache
-		triples.apply();
+		//	one thread per account, plus one for the vocabulary
+		workers = Executors.newFixedThreadPool(adapters.size() + 1);
+
+		//	add the (transitive) subclassing triples to the message cache, and the rdf:type triples they imply for
+		//	resources already in the cache (e.g. from older versions) -- applying a delta materializes the
+		//	super-types of the resources it adds, so queries on the cache don't need RDFS reasoning
+		workers.submit(() -> {
+			var triples = new Delta(cache);
+			Vocabulary.allSuperClasses.forEach((sub, sups) ->
+					sups.forEach(sup -> triples.bothOP(sub, RDFS.subClassOf.toString(), sup)));
+			addTypedResources(triples);
+			triples.apply();
+			return null;
+		});
+
+		//	bring the accounts online in parallel, without waiting for them -- each account's triples are added
+		//	to the cache, and an ACCOUNT_ONLINE event fired, as soon as that account is initialized, so a slow
+		//	server only delays its own account
+
+		for (IAdapter adapter : adapters.values())
+		{
+			online.put(adapter.getId(), workers.submit(() -> {
+				try
+				{
+					var delta = new Delta(cache);
+					adapter.initialize(syncs.computeIfAbsent(adapter.getId(), k -> new ConcurrentHashMap<>()), delta);
+					delta.apply();
+					LOGGER.log(Level.INFO, "{0} :: online after {1} ms",
+							new Object[]{adapter.getId(), (System.nanoTime() - start) / 1_000_000});
+					var builder = new EventSetBuilder();
+					builder.newEvent(Vocabulary.ACCOUNT_ONLINE, adapter.getId());
+					notificationQ.add(() -> listenerManager.notifyListeners(builder));
+					if (OFFLINE_FIRST)
+					{
+						reconcile(adapter);
+					}
+					return null;
+				}
+				catch (Exception ex)
+				{
+					LOGGER.log(Level.WARNING, "{0} :: failed to come online :: {1}",
+							new String[]{adapter.getId(), LoggerUtils.exceptionMessage(ex)});
+					throw ex;
+				}
+			}));
+		}
+
+		//	in offline first mode the cache can be queried now, with whatever it held at the end of the last run,
+		//	otherwise wait until every account is online
+		if (!OFFLINE_FIRST)
+		{
+			online.values().forEach(LocalStorage::awaitOnline);
+		}
 
+		LOGGER.log(Level.INFO, "queryable after {0} ms", (System.nanoTime() - start) / 1_000_000);
 		LOGGER.exiting(this.getClass().getCanonicalName(), "()");
 	}
 
+	//	bring what the cache holds for an account up to date with the account's server, by syncing everything
+	//	the account contains (e.g. its folders) -- in offline first mode this happens in the background as soon as
+	//	the account comes online
+
+	private void reconcile(IAdapter adapter) throws StorageException
+	{
+		var accountSyncs = syncs.get(adapter.getId());
+		var rs = query("select ?rid where { <" + adapter.getId() + "> <" + Vocabulary.CONTAINS + "> ?rid }");
+		while (rs.hasNext())
+		{
+			var rid = rs.next().getResource("rid").toString();
+			var sync = getReconcileSync(adapter, rid);
+			if (sync == null)
+			{
+				sync = getSync(accountSyncs, rid);
+			}
+			if (sync != null)
+			{
+				sync.apply(rid);
+			}
+		}
+	}
+
 	@Override
 	public void close()
 	{
 		LOGGER.entering(this.getClass().getCanonicalName(), "close");
 
+		workers.shutdownNow();
+
 		Model model = ModelFactory.createDefaultModel();
 		for (IAdapter adapter : adapters.values())
 		{
@@ -210,6 +289,8 @@ public class LocalStorage implements IStorage
 		//JenaUtils.printModel(model, "SAVE");
 
 		notificationQ.add(POISON_PILL);
+		listenerManager.close();
+		CommitScheduler.close(cache);
 		cache.close();
 
 		LOGGER.exiting(this.getClass().getCanonicalName(), "close");//"::()");
@@ -266,21 +347,25 @@ public class LocalStorage implements IStorage
 				assert opType.equals(Vocabulary.SYNC);
 				System.out.println("ITS A SYNCH " + rid);
 
-				var typeRS = query("select * where { <" + rid + "> a ?type }");
-				while (typeRS.hasNext())
+				var sync = getSync(rid.toString());
+				if (sync == null)
 				{
-					var typeSol = typeRS.next();
-					var foo = syncs.get(typeSol.get("type").toString());
-					if (foo != null)
-					{
-						return foo.apply(rid.toString());
-					}
+					//	syncs are registered by accounts as they come online, so the resource's account may not be
+					//	online yet -- wait for all of them
+					online.values().forEach(LocalStorage::awaitOnline);
+					sync = getSync(rid.toString());
+				}
+				if (sync != null)
+				{
+					return sync.apply(rid.toString());
 				}
 			}
 
 			//	fall back to the old ops that used the accouint id
 			assert aid != null;
-			return A(aid.toString()).doOperation(opSol.getResource("oid").toString(), opType, op);
+			var adapter = A(aid.toString());
+			awaitOnline(online.get(adapter.getId()));
+			return adapter.doOperation(opSol.getResource("oid").toString(), opType, op);
 		}
 		catch (Exception ex)
 		{
@@ -288,30 +373,168 @@ public class LocalStorage implements IStorage
 		}
 	}
 
+	//	the sync for a resource, from the account the resource belongs to (which may be the resource itself)
+
+	private Function<String, Future<?>> getSync(String rid) throws StorageException
+	{
+		var accountRS = query("select ?aid where { ?aid <" + Vocabulary.CONTAINS + ">* <" + rid + "> }");
+		while (accountRS.hasNext())
+		{
+			var accountSyncs = syncs.get(accountRS.next().get("aid").toString());
+			if (accountSyncs != null)
+			{
+				var sync = getSync(accountSyncs, rid);
+				if (sync != null)
+				{
+					return sync;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	private Function<String, Future<?>> getReconcileSync(IAdapter adapter, String rid) throws StorageException
+	{
+		var typeRS = query("select * where { <" + rid + "> a ?type }");
+		while (typeRS.hasNext())
+		{
+			var sync = adapter.getReconcileSync(typeRS.next().get("type").toString());
+			if (sync != null)
+			{
+				return sync;
+			}
+		}
+
+		return null;
+	}
+
+	private Function<String, Future<?>> getSync(Map<String, Function<String, Future<?>>> accountSyncs, String rid)
+			throws StorageException
+	{
+		if (accountSyncs == null)
+		{
+			return null;
+		}
+
+		var typeRS = query("select * where { <" + rid + "> a ?type }");
+		while (typeRS.hasNext())
+		{
+			var typeSol = typeRS.next();
+			var sync = accountSyncs.get(typeSol.get("type").toString());
+			if (sync != null)
+			{
+				return sync;
+			}
+		}
+
+		return null;
+	}
+
+	//	wait for an account to come online -- if it failed to, operations on it will fail in their own way
+
+	private static void awaitOnline(Future<?> online)
+	{
+		try
+		{
+			if (online != null)
+			{
+				online.get();
+			}
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException ex)
+		{
+			//	already logged when the account failed to start
+		}
+	}
+
 	@Override
 	public ResultSet query(String query) throws StorageException
 	{
 		return BaseAdapter.query(cache, query);
 	}
 
+	@Override
+	public QueryCursor cursor(String query) throws StorageException
+	{
+		return new DatasetQueryCursor(cache, query);
+	}
+
+	@Override
+	public ByteBuffer getContent(String blobId) throws StorageException
+	{
+		try
+		{
+			return blobs.get(blobId);
+		}
+		catch (IOException ex)
+		{
+			throw new StorageException(ex);
+		}
+	}
+
 	@Override
 	public void addListener(IStorageListener listener)
 	{
 		listenerManager.addListener(listener);
 	}
 
+	@Override
+	public void addListener(IStorageEventListener listener)
+	{
+		listenerManager.addListener(listener);
+	}
+
+	@Override
+	public void removeListener(IStorageListener listener)
+	{
+		listenerManager.removeListener(listener);
+	}
+
+	@Override
+	public void removeListener(IStorageEventListener listener)
+	{
+		listenerManager.removeListener(listener);
+	}
+
 	@Override
 	public Future<?> moveMessagesToJunk(String accountId, String sourceFolderId,
 										Collection<String> messageIds, String targetFolderId, boolean delete) throws NoSuchAccountException
 	{
-		return A(accountId).moveMessagesToJunk(sourceFolderId, messageIds, targetFolderId, delete);
+		var adapter = A(accountId);
+		awaitOnline(online.get(adapter.getId()));
+		return adapter.moveMessagesToJunk(sourceFolderId, messageIds, targetFolderId, delete);
 	}
 
 	@Override
 	public Future<?> copyMessages(String accountId, String sourceFolderId, Collection<String> messageIds,
 								  String targetFolderId, boolean delete) throws MessagingException, NoSuchAccountException
 	{
-		return A(accountId).copyMessages(sourceFolderId, messageIds, targetFolderId, delete);
+		var adapter = A(accountId);
+		awaitOnline(online.get(adapter.getId()));
+		return adapter.copyMessages(sourceFolderId, messageIds, targetFolderId, delete);
+	}
+
+	//	add the rdf:type triples of every sub-classed resource in the cache to a delta, so applying the delta
+	//	materializes their super-types
+
+	private void addTypedResources(Delta delta)
+	{
+		cache.begin(ReadWrite.READ);
+		try
+		{
+			var model = cache.getDefaultModel();
+			Vocabulary.allSuperClasses.keySet().forEach(sub ->
+					delta.add(model.listStatements(null, RDF.type, model.createResource(sub))));
+		}
+		finally
+		{
+			cache.end();
+		}
 	}
 
 	//	creates a model for the accounts from the incoming model by adding sub-class information
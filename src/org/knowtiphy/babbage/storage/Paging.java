@@ -0,0 +1,57 @@
+package org.knowtiphy.babbage.storage;
+
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.query.ParameterizedSparqlString;
+import org.apache.jena.query.QueryFactory;
+
+/**
+ * Helpers for fetching query results a page at a time, for use with IStorage.cursor.
+ *
+ * @author graham
+ */
+public class Paging
+{
+	//	restrict a select query to one page of its results -- the query should have an order by, or the pages
+	//	are not guaranteed to be consistent with each other
+
+	public static String page(String query, long offset, int limit)
+	{
+		var q = QueryFactory.create(query);
+		q.setOffset(offset);
+		q.setLimit(limit);
+		return q.serialize();
+	}
+
+	//	a page of the messages in a folder, newest first, binding ?mid and ?received. The page starts after the
+	//	message (mid, received) which ended the previous page -- pass nulls for the first page. Paging on the key
+	//	(keyset paging) rather than an offset means later pages cost no more than the first, and messages
+	//	arriving or being deleted don't shift the pages.
+
+	public static String messages(String folderId, String received, String mid, int limit)
+	{
+		var after = "";
+		if (received != null && mid != null)
+		{
+			after = "      filter(?received < ?afterReceived || (?received = ?afterReceived && str(?mid) < ?afterMid))\n";
+		}
+
+		//	ids come from clients, so let jena escape them rather than pasting them into the query
+		var query = new ParameterizedSparqlString("select ?mid ?received\n"
+				+ "where\n"
+				+ "{\n"
+				+ "      ?folder <" + Vocabulary.CONTAINS + "> ?mid.\n"
+				+ "      ?mid <" + Vocabulary.RECEIVED_ON + "> ?received.\n"
+				+ after
+				+ "}\n"
+				+ "order by desc(?received) desc(str(?mid))\n"
+				+ "limit " + limit);
+		query.setIri("folder", folderId);
+		if (received != null && mid != null)
+		{
+			query.setLiteral("afterReceived", received, XSDDatatype.XSDdateTime);
+			query.setLiteral("afterMid", mid);
+		}
+
+		return query.toString();
+	}
+}
@@ -0,0 +1,21 @@
+package org.knowtiphy.babbage.storage;
+
+import org.apache.jena.query.QuerySolution;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A cursor over the solutions of a select query, which streams the solutions rather than copying them all into
+ * memory first. Cursors hold resources (a read transaction, a stream from the server) until they are closed, so
+ * they must be closed -- use try with resources.
+ *
+ * @author graham
+ */
+public interface QueryCursor extends Iterator<QuerySolution>, AutoCloseable
+{
+	List<String> getResultVars();
+
+	@Override
+	void close();
+}
@@ -1,129 +1,656 @@
 package org.knowtiphy.babbage.storage;
 
-//	a class to use on the client to talk to a remote storage layer (so a layer on the same machine, but not in
-//	the same process)
-public class RemoteStorage //implements IStorage
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.query.ResultSetFactory;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.sparql.core.ResultBinding;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.iterator.QueryIterPlainWrapper;
+import org.apache.jena.vocabulary.RDFS;
+import org.knowtiphy.babbage.storage.exceptions.StorageException;
+import org.knowtiphy.babbage.storage.remote.Connection;
+import org.knowtiphy.babbage.storage.remote.Frame;
+import org.knowtiphy.babbage.storage.remote.Wire;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A storage layer in another process on the same machine (a PinkPigMailServer), talked to over the protocol in
+ * Wire. Requests are pipelined -- doOperation etc send the request and return a future straight away, and the
+ * future is completed when the server's response with the request's id arrives, so many operations can be in
+ * flight at once. Query solutions are streamed from the server a chunk at a time, and the server only sends a
+ * small window of chunks ahead of what the cursor has read, so a slow reader holds up its query, not our memory.
+ * <p>
+ * If the connection is lost, requests in flight fail, and we reconnect in the background (re-subscribing to the
+ * change feeds we had, and telling listeners every account is online again since they missed events), while new
+ * requests wait up to babbage.reconnectMillis for the connection to come back.
+ *
+ * @author graham
+ */
+public class RemoteStorage implements IStorage
 {
-//	private final Socket socket;
-//	private final OutputStream output;
-//
-//	public RemoteStorage(int port) throws IOException
-//	{
-//		socket = new Socket("localhost", port);
-//		output = new DataOutputStream(socket.getOutputStream());
-//	}
-//	@Override
-//	public ResultSet query(String id, String query)
-//	{
-//		return null;
-//	}
-//
-//	//	send a message to a remote server
-//	private Future<?> send(IMessage message)
-//	{
-//		Future<?> task = null; //TODO -- new FutureTask<Void>();
-//		ObjectMapper objectMapper = new ObjectMapper();
-//		//	add the header
-//		//	TODO -- is this correct?
-//		try
-//		{
-//			output.write(message.getClass().getSimpleName().getBytes());
-//			output.write(" ".getBytes());
-//			objectMapper.writeValue(output, message);
-//		} catch (IOException ex)
-//		{
-//			//	need to set the exception for the task
-//		}
-//		//	TODO -- futures?
-//		return task;
-//	}
-//	@Override
-//	public Model getAccounts()
-//	{
-//		return null;
-//	}
-//
-//	@Override
-//	public Map<String, FutureTask<?>> addListener(IStorageListener listener)
-//			throws StorageException, MessagingException, InterruptedException
-//	{
-//		//	TODO
-//		return null;
-//	}
-//
-//	public Future<?> send(Model model) throws StorageException
-//	{
-//		return null;
-//	}
-//
-//	@Override
-//	public void send(MessageModel model) throws StorageException
-//	{
-//
-//	}
-//
-//	@Override
-//	public IReadContext getReadContext()
-//	{
-//		return null;
-//	}
-//
-//	@Override
-//	public void close()
-//	{
-//		send(new CloseMessage());
-//	}
-//
-//	@Override
-//	public Future<?> deleteMessages(String accountId, String folderId, Collection<String> messageIds)
-//	{
-//		return send(new DeleteMessage(accountId, folderId, messageIds));
-//	}
-//
-//	@Override
-//	public Future<?> moveMessagesToJunk(String accountId, String sourceFolderId,
-//										Collection<String> messageIds, String targetFolderId, boolean delete)
-//	{
-//		return send(new MoveToJunkMessage(accountId, sourceFolderId, messageIds, targetFolderId, delete));
-//	}
-//
-//	@Override
-//	public Future<?> copyMessages(String accountId, String sourceFolderId, Collection<String> messageIds,
-//								  String targetFolderId, boolean delete)
-//	{
-//		return send(new CopyMessage(accountId, sourceFolderId, messageIds, targetFolderId, delete));
-//	}
-//
-//	@Override
-//	public Future<?> markMessagesAsAnswered(String accountId, String folderId, Collection<String> messageIds,
-//											boolean flag)
-//	{
-//		return send(new MarkAsAnsweredMessage(accountId, folderId, messageIds, flag));
-//	}
-//
-//	@Override
-//	public Future<?> markMessagesAsRead(String accountId, String folderId, Collection<String> messageIds,
-//										boolean flag)
-//	{
-//		return send(new MarkAsReadMessage(accountId, folderId, messageIds, flag));
-//	}
-//
-//	@Override
-//	public Future<?> markMessagesAsJunk(String accountId, String folderId, Collection<String> messageIds,
-//										boolean flag)
-//	{
-//		return send(new MarkAsJunkMessage(accountId, folderId, messageIds, flag));
-//	}
-//
-//	@Override
-//	public Future<?> ensureMessageContentLoaded(String accountId, String folderId, String messageId)
-//	{
-//		return send(new EnsureContentLoadedMessage(accountId, folderId, messageId));
-//	}
-//
-//	@Override
-//	public Future<?> loadAhead(String accountId, String folderId, Collection<String> messageIds)
-//	{
-//		return null;
-//	}
-}
\ No newline at end of file
+	private static final Logger LOGGER = Logger.getLogger(RemoteStorage.class.getName());
+
+	private static final long RECONNECT_MILLIS = Long.getLong("babbage.reconnectMillis", 10_000L);
+	private static final long MAX_BACKOFF_MILLIS = 5_000L;
+
+	private final SocketAddress address;
+	private final AtomicLong ids = new AtomicLong();
+	//	handlers for the responses to requests in flight, by request id
+	private final Map<Long, Consumer<Frame>> pending = new ConcurrentHashMap<>();
+	//	the listeners of this process, fed from (at most) one model feed and one event feed from the server
+	private final ListenerManager listenerManager = new ListenerManager();
+	private final AtomicBoolean modelFeed = new AtomicBoolean(false);
+	private final AtomicBoolean eventFeed = new AtomicBoolean(false);
+
+	private Connection connection;
+	private boolean closed = false;
+
+	public RemoteStorage(SocketAddress address) throws IOException
+	{
+		this.address = address;
+		//	locked so a connection lost straight away is seen as the current connection
+		synchronized (this)
+		{
+			connection = connect();
+		}
+	}
+
+	public RemoteStorage() throws IOException
+	{
+		this(Wire.address());
+	}
+
+	@Override
+	public Future<?> doOperation(Model operation) throws StorageException
+	{
+		return operation(Wire.DO_OPERATION, out -> out.model(operation));
+	}
+
+	@Override
+	public Future<?> moveMessagesToJunk(String accountId, String sourceFolderId, Collection<String> messageIds,
+										String targetFolderId, boolean delete)
+	{
+		return messages(Wire.MOVE_TO_JUNK, accountId, sourceFolderId, messageIds, targetFolderId, delete);
+	}
+
+	@Override
+	public Future<?> copyMessages(String accountId, String sourceFolderId, Collection<String> messageIds,
+								  String targetFolderId, boolean delete)
+	{
+		return messages(Wire.COPY_MESSAGES, accountId, sourceFolderId, messageIds, targetFolderId, delete);
+	}
+
+	//	the whole result set, collected from the stream of solutions
+
+	@Override
+	public ResultSet query(String query) throws StorageException
+	{
+		try (var cursor = new RemoteQueryCursor(query))
+		{
+			var bindings = new ArrayList<Binding>();
+			while (cursor.fill())
+			{
+				bindings.addAll(cursor.buffer);
+				cursor.buffer.clear();
+			}
+			return ResultSetFactory.create(QueryIterPlainWrapper.create(bindings.iterator()), cursor.getResultVars());
+		}
+		catch (RuntimeException ex)
+		{
+			throw new StorageException(ex.getCause() != null ? ex.getCause() : ex);
+		}
+	}
+
+	@Override
+	public QueryCursor cursor(String query) throws StorageException
+	{
+		return new RemoteQueryCursor(query);
+	}
+
+	@Override
+	public ByteBuffer getContent(String blobId) throws StorageException
+	{
+		var content = new CompletableFuture<ByteBuffer>();
+		request(Wire.GET_CONTENT, out -> out.string(blobId), frame -> {
+			if (frame.type == Wire.CONTENT)
+			{
+				content.complete(ByteBuffer.wrap(frame.payload));
+			}
+			else
+			{
+				content.completeExceptionally(error(frame));
+			}
+		});
+		return await(content);
+	}
+
+	@Override
+	public void addListener(IStorageListener listener) throws StorageException
+	{
+		listenerManager.addListener(listener);
+		subscribe(modelFeed, Wire.MODEL_FEED);
+	}
+
+	@Override
+	public void addListener(IStorageEventListener listener) throws StorageException
+	{
+		listenerManager.addListener(listener);
+		subscribe(eventFeed, Wire.EVENT_FEED);
+	}
+
+	@Override
+	public void removeListener(IStorageListener listener)
+	{
+		listenerManager.removeListener(listener);
+	}
+
+	@Override
+	public void removeListener(IStorageEventListener listener)
+	{
+		listenerManager.removeListener(listener);
+	}
+
+	@Override
+	public void close()
+	{
+		Connection current;
+		synchronized (this)
+		{
+			closed = true;
+			current = connection;
+			notifyAll();
+		}
+		if (current != null)
+		{
+			current.close();
+		}
+		//	lost() ignores a closed storage, so nothing else will wake up whoever is waiting
+		failPending("storage closed");
+		listenerManager.close();
+	}
+
+	//	private methods start here
+
+	private Connection connect() throws IOException
+	{
+		var channel = address instanceof UnixDomainSocketAddress
+				? SocketChannel.open(StandardProtocolFamily.UNIX) : SocketChannel.open();
+		try
+		{
+			channel.connect(address);
+		}
+		catch (IOException ex)
+		{
+			channel.close();
+			throw ex;
+		}
+
+		//	read before starting, so a missing token fails the connect
+		var token = Wire.needsToken(address) ? Wire.readToken() : null;
+		var c = new Connection(channel, "storage-client");
+		c.start(this::handle, () -> lost(c));
+		if (token != null)
+		{
+			//	the first frame on the connection -- the server's reply has no pending request, so is ignored
+			c.send(new Frame(Wire.AUTH, 0, Wire.payload(out -> out.string(token))));
+		}
+		return c;
+	}
+
+	//	called on the connection's reader thread
+
+	private void handle(Frame frame)
+	{
+		if (frame.type == Wire.EVENT_MODEL)
+		{
+			try
+			{
+				listenerManager.notifyListeners(frame.in().model());
+			}
+			catch (IOException ex)
+			{
+				LOGGER.log(Level.WARNING, "bad event model :: {0}", ex.getLocalizedMessage());
+			}
+		}
+		else if (frame.type == Wire.EVENTS)
+		{
+			try
+			{
+				listenerManager.notifyEventListeners(frame.in().events());
+			}
+			catch (IOException ex)
+			{
+				LOGGER.log(Level.WARNING, "bad events :: {0}", ex.getLocalizedMessage());
+			}
+		}
+		else
+		{
+			//	ROWS is the only response that isn't the last one for its request
+			var handler = frame.type == Wire.ROWS ? pending.get(frame.id) : pending.remove(frame.id);
+			//	no handler means the request was given up on (e.g. a cancelled query)
+			if (handler != null)
+			{
+				handler.accept(frame);
+			}
+		}
+	}
+
+	//	fail everything in flight, and start reconnecting
+
+	private void lost(Connection lost)
+	{
+		synchronized (this)
+		{
+			if (closed || connection != lost)
+			{
+				return;
+			}
+			connection = null;
+		}
+
+		LOGGER.log(Level.WARNING, "lost connection to storage server at {0}", address);
+		failPending("connection to storage server lost");
+
+		var reconnect = new Thread(this::reconnect, "storage-client-reconnect");
+		reconnect.setDaemon(true);
+		reconnect.start();
+	}
+
+	//	fail every request still waiting for a response
+
+	private void failPending(String message)
+	{
+		var failure = new Frame(Wire.ERROR, -1, Wire.payload(out -> out.string(message)));
+		pending.keySet().forEach(id -> {
+			var handler = pending.remove(id);
+			if (handler != null)
+			{
+				handler.accept(failure);
+			}
+		});
+	}
+
+	private void reconnect()
+	{
+		long backoff = 100;
+		while (true)
+		{
+			try
+			{
+				synchronized (this)
+				{
+					if (closed)
+					{
+						return;
+					}
+					connection = connect();
+					notifyAll();
+				}
+			}
+			catch (IOException ex)
+			{
+				try
+				{
+					Thread.sleep(backoff);
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+				backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+				continue;
+			}
+
+			LOGGER.log(Level.INFO, "reconnected to storage server at {0}", address);
+
+			//	the new connection has no subscriptions, so make them again -- if this fails then the connection
+			//	has been lost again, and that starts another reconnect
+			try
+			{
+				if (modelFeed.get())
+				{
+					subscribe(Wire.MODEL_FEED);
+				}
+				if (eventFeed.get())
+				{
+					subscribe(Wire.EVENT_FEED);
+				}
+				if (modelFeed.get() || eventFeed.get())
+				{
+					resync();
+				}
+			}
+			catch (StorageException ex)
+			{
+				LOGGER.log(Level.WARNING, "resubscribing failed :: {0}", ex.getLocalizedMessage());
+			}
+			return;
+		}
+	}
+
+	//	send a frame that only means something on the current connection (e.g. flow control for a query streaming
+	//	on it) -- if the connection has gone, so has whatever the frame was about
+
+	private void sendNow(Frame frame)
+	{
+		Connection c;
+		synchronized (this)
+		{
+			c = connection;
+		}
+		if (c != null)
+		{
+			try
+			{
+				c.send(frame);
+			}
+			catch (IOException ex)
+			{
+				//	gone
+			}
+		}
+	}
+
+	//	events pushed while we were disconnected are lost, so tell the listeners every account is online again,
+	//	just as when an account first comes online, so they refresh what they know about it
+
+	private void resync() throws StorageException
+	{
+		var builder = new EventSetBuilder();
+		var rs = query("select distinct ?aid where { ?aid a ?type . ?type <" + RDFS.subClassOf + "> <"
+				+ Vocabulary.ACCOUNT + "> }");
+		while (rs.hasNext())
+		{
+			builder.newEvent(Vocabulary.ACCOUNT_ONLINE, rs.next().getResource("aid").toString());
+		}
+		listenerManager.notifyListeners(builder);
+	}
+
+	//	the connection, waiting for a reconnect if we need to
+
+	private synchronized Connection connection() throws IOException
+	{
+		long deadline = System.currentTimeMillis() + RECONNECT_MILLIS;
+		while (connection == null && !closed)
+		{
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+			{
+				throw new IOException("No connection to storage server at " + address);
+			}
+			try
+			{
+				wait(remaining);
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+				throw new IOException(ex);
+			}
+		}
+
+		if (closed)
+		{
+			throw new IOException("Storage closed");
+		}
+
+		return connection;
+	}
+
+	//	send a request, with a handler for its response(s), and return its id
+
+	private long request(byte type, Wire.PayloadWriter payload, Consumer<Frame> handler) throws StorageException
+	{
+		long id = ids.incrementAndGet();
+		pending.put(id, handler);
+		try
+		{
+			connection().send(new Frame(type, id, Wire.payload(payload)));
+		}
+		catch (IOException ex)
+		{
+			pending.remove(id);
+			throw new StorageException(ex);
+		}
+		return id;
+	}
+
+	//	send a request whose response is DONE (with an optional string result) or ERROR
+
+	private CompletableFuture<Object> operation(byte type, Wire.PayloadWriter payload) throws StorageException
+	{
+		var future = new CompletableFuture<Object>();
+		request(type, payload, frame -> {
+			if (frame.type == Wire.DONE)
+			{
+				try
+				{
+					future.complete(frame.in().string());
+				}
+				catch (IOException ex)
+				{
+					future.completeExceptionally(ex);
+				}
+			}
+			else
+			{
+				future.completeExceptionally(error(frame));
+			}
+		});
+		return future;
+	}
+
+	private Future<?> messages(byte type, String accountId, String sourceFolderId, Collection<String> messageIds,
+							   String targetFolderId, boolean delete)
+	{
+		try
+		{
+			return operation(type, out -> {
+				out.string(accountId).string(sourceFolderId).strings(messageIds).string(targetFolderId);
+				out.writeBoolean(delete);
+			});
+		}
+		catch (StorageException ex)
+		{
+			return CompletableFuture.failedFuture(ex);
+		}
+	}
+
+	//	subscribe to a feed of events from the server, unless we already have
+
+	private void subscribe(AtomicBoolean feed, byte kind) throws StorageException
+	{
+		if (feed.compareAndSet(false, true))
+		{
+			try
+			{
+				subscribe(kind);
+			}
+			catch (StorageException ex)
+			{
+				feed.set(false);
+				throw ex;
+			}
+		}
+	}
+
+	private void subscribe(byte kind) throws StorageException
+	{
+		await(operation(Wire.SUBSCRIBE, out -> out.writeByte(kind)));
+	}
+
+	private static <T> T await(CompletableFuture<T> future) throws StorageException
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new StorageException(ex);
+		}
+		catch (ExecutionException ex)
+		{
+			throw new StorageException(ex.getCause());
+		}
+	}
+
+	private static StorageException error(Frame frame)
+	{
+		try
+		{
+			return new StorageException(frame.in().string());
+		}
+		catch (IOException ex)
+		{
+			return new StorageException(ex);
+		}
+	}
+
+	//	a cursor over the solutions streamed from the server -- the frames of the stream are queued as they arrive,
+	//	and decoded as the cursor gets to them
+
+	private class RemoteQueryCursor implements QueryCursor
+	{
+		private final long id;
+		//	the server sends at most a window of chunks ahead of what we have read, plus the END (or ERROR)
+		private final BlockingQueue<Frame> frames = new ArrayBlockingQueue<>(Wire.CURSOR_WINDOW + 1);
+		private final Deque<Binding> buffer = new ArrayDeque<>();
+		private final List<String> vars = new ArrayList<>();
+		private boolean started = false;
+		private boolean done = false;
+
+		RemoteQueryCursor(String query) throws StorageException
+		{
+			id = request(Wire.QUERY, out -> out.string(query), this::received);
+		}
+
+		@Override
+		public List<String> getResultVars()
+		{
+			//	the first chunk has the variables
+			if (!started)
+			{
+				fill();
+			}
+			return vars;
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			return !buffer.isEmpty() || fill();
+		}
+
+		@Override
+		public QuerySolution next()
+		{
+			if (!hasNext())
+			{
+				throw new NoSuchElementException();
+			}
+			return new ResultBinding(null, buffer.poll());
+		}
+
+		@Override
+		public void close()
+		{
+			if (!done)
+			{
+				done = true;
+				pending.remove(id);
+				sendNow(new Frame(Wire.CANCEL, id));
+			}
+		}
+
+		//	called on the connection's reader thread, so must not block -- the server never sends more than the
+		//	window, so there is always room unless it is broken
+
+		private void received(Frame frame)
+		{
+			if (!frames.offer(frame))
+			{
+				LOGGER.log(Level.WARNING, "query {0} :: server overran the window", id);
+				pending.remove(id);
+				frames.clear();
+				frames.offer(new Frame(Wire.ERROR, id, Wire.payload(out -> out.string("server overran the window"))));
+			}
+		}
+
+		//	get the next chunk of solutions -- returns false at the end of the stream
+
+		private boolean fill()
+		{
+			while (!done)
+			{
+				Frame frame;
+				try
+				{
+					frame = frames.take();
+				}
+				catch (InterruptedException ex)
+				{
+					Thread.currentThread().interrupt();
+					close();
+					throw new IllegalStateException(ex);
+				}
+
+				switch (frame.type)
+				{
+					case Wire.ROWS:
+						//	we have room for another chunk
+						sendNow(new Frame(Wire.CREDIT, id));
+						try
+						{
+							frame.in().rows(vars, buffer);
+						}
+						catch (IOException ex)
+						{
+							close();
+							throw new IllegalStateException(new StorageException(ex));
+						}
+						started = true;
+						if (!buffer.isEmpty())
+						{
+							return true;
+						}
+						break;
+					case Wire.END:
+						done = true;
+						started = true;
+						return false;
+					default:
+						done = true;
+						throw new IllegalStateException(error(frame));
+				}
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,314 @@
+package org.knowtiphy.babbage.storage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An executor for the blocking network work of an account (loading message content etc) that runs every task
+ * in its own virtual thread, so concurrency is limited by what the server allows rather than by pool sizes.
+ * All the accounts on the same server share a semaphore per kind of work, so together they never have more than
+ * babbage.maxServerConnections content tasks, and babbage.maxServerLoadAheadConnections load ahead tasks,
+ * talking to the server at once. The kinds have separate permits so a big load ahead never queues the content
+ * the user is waiting for behind it.
+ * <p>
+ * Work on a folder goes through the account's one pooled open folder, and so one connection, so tasks submitted
+ * for the same folder are run one after another and a folder holds one permit however much work it has queued --
+ * a permit is then a connection in use, not a task blocked on another task's folder. In pooled mode each of a
+ * folder's tasks goes back to the pool for its turn, so a folder with a lot of work doesn't keep a pool thread
+ * from the account's other folders, or from other accounts, until it is done.
+ * <p>
+ * The mode is picked at startup with -Dbabbage.executor=virtual (the default, pooled, runs the tasks on the
+ * fixed pools, which bound them instead of the permits). Virtual threads need JDK 21, so on older JDKs virtual
+ * mode falls back to a platform thread per task, which the semaphore still bounds.
+ *
+ * @author graham
+ */
+public class ServerExecutor extends AbstractExecutorService
+{
+	private static final Logger LOGGER = Logger.getLogger(ServerExecutor.class.getName());
+
+	public static final boolean VIRTUAL = "virtual".equalsIgnoreCase(System.getProperty("babbage.executor", "pooled"));
+	public static final int MAX_SERVER_CONNECTIONS = Integer.getInteger("babbage.maxServerConnections", 10);
+	public static final int MAX_SERVER_LOAD_AHEAD_CONNECTIONS =
+			Integer.getInteger("babbage.maxServerLoadAheadConnections", 2);
+
+	//	keyed by server and kind of work
+	private static final Map<String, Semaphore> permits = new ConcurrentHashMap<>();
+
+	private final String server;
+	private final String kind;
+	private final ExecutorService threads;
+	//	null in pooled mode
+	private final Semaphore semaphore;
+	//	the tasks waiting for each folder that has work running
+	private final Map<String, Queue<FolderTask<?>>> folders = new HashMap<>();
+
+	//	metrics
+	private final AtomicLong tasks = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+	private final AtomicInteger running = new AtomicInteger();
+	private final AtomicInteger peak = new AtomicInteger();
+
+	private ServerExecutor(String server, String kind, ExecutorService threads, Semaphore semaphore)
+	{
+		this.server = server;
+		this.kind = kind;
+		this.threads = threads;
+		this.semaphore = semaphore;
+	}
+
+	//	an executor for one kind of work against the given server, bounded to maxConnections for all the accounts
+	//	on the server -- on virtual threads in virtual mode, otherwise on whatever pooled executor the adapter
+	//	would use anyway
+
+	public static ServerExecutor of(String server, String kind, int maxConnections, Supplier<ExecutorService> pooled)
+	{
+		if (VIRTUAL)
+		{
+			return new ServerExecutor(server, kind, newVirtualThreadExecutor(),
+					permits.computeIfAbsent(server + "#" + kind, k -> new Semaphore(maxConnections, true)));
+		}
+		return new ServerExecutor(server, kind, pooled.get(), null);
+	}
+
+	@Override
+	public void execute(Runnable command)
+	{
+		threads.execute(() -> {
+			acquire();
+			try
+			{
+				run(command);
+			}
+			finally
+			{
+				release();
+			}
+		});
+	}
+
+	//	run a task that works on the given folder, after any tasks already submitted for the folder
+
+	public <T> Future<T> submit(String folderId, Callable<T> task)
+	{
+		var future = new FolderTask<>(task);
+		boolean start;
+		synchronized (folders)
+		{
+			var queue = folders.get(folderId);
+			start = queue == null;
+			if (start)
+			{
+				queue = new ArrayDeque<>();
+				folders.put(folderId, queue);
+			}
+			queue.add(future);
+		}
+
+		if (start)
+		{
+			schedule(folderId);
+		}
+
+		return future;
+	}
+
+	//	get the folder's next task run -- if the executor won't take it, fail every task waiting for the folder
+
+	private void schedule(String folderId)
+	{
+		try
+		{
+			threads.execute(semaphore == null ? () -> step(folderId) : () -> drain(folderId));
+		}
+		catch (RejectedExecutionException ex)
+		{
+			List<FolderTask<?>> rejected;
+			synchronized (folders)
+			{
+				rejected = new ArrayList<>(folders.remove(folderId));
+			}
+			rejected.forEach(t -> t.fail(ex));
+		}
+	}
+
+	//	run the folder's next task, then queue the one after it (if any) behind whatever else the pool has
+
+	private void step(String folderId)
+	{
+		Runnable next;
+		synchronized (folders)
+		{
+			next = folders.get(folderId).poll();
+		}
+
+		run(next);
+
+		boolean more;
+		synchronized (folders)
+		{
+			more = !folders.get(folderId).isEmpty();
+			if (!more)
+			{
+				folders.remove(folderId);
+			}
+		}
+
+		if (more)
+		{
+			schedule(folderId);
+		}
+	}
+
+	//	run the tasks for a folder until there are none left, holding one permit throughout -- a virtual thread
+	//	waiting on the next task costs nothing
+
+	private void drain(String folderId)
+	{
+		acquire();
+		try
+		{
+			while (true)
+			{
+				Runnable next;
+				synchronized (folders)
+				{
+					next = folders.get(folderId).poll();
+					if (next == null)
+					{
+						folders.remove(folderId);
+						return;
+					}
+				}
+				run(next);
+			}
+		}
+		finally
+		{
+			release();
+		}
+	}
+
+	private void acquire()
+	{
+		if (semaphore != null)
+		{
+			long start = System.nanoTime();
+			semaphore.acquireUninterruptibly();
+			waitNanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	private void release()
+	{
+		if (semaphore != null)
+		{
+			semaphore.release();
+		}
+	}
+
+	private void run(Runnable command)
+	{
+		peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+		try
+		{
+			command.run();
+		}
+		finally
+		{
+			running.decrementAndGet();
+			tasks.incrementAndGet();
+		}
+	}
+
+	@Override
+	public void shutdown()
+	{
+		LOGGER.log(Level.INFO, "{0}", this);
+		threads.shutdown();
+	}
+
+	@Override
+	public List<Runnable> shutdownNow()
+	{
+		return threads.shutdownNow();
+	}
+
+	@Override
+	public boolean isShutdown()
+	{
+		return threads.isShutdown();
+	}
+
+	@Override
+	public boolean isTerminated()
+	{
+		return threads.isTerminated();
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		return threads.awaitTermination(timeout, unit);
+	}
+
+	private static ExecutorService newVirtualThreadExecutor()
+	{
+		try
+		{
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (ReflectiveOperationException ex)
+		{
+			LOGGER.log(Level.CONFIG, "no virtual threads, using a platform thread per task");
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	//	a task for a folder, which fails if it can't be run
+
+	private static class FolderTask<T> extends FutureTask<T>
+	{
+		FolderTask(Callable<T> task)
+		{
+			super(task);
+		}
+
+		void fail(Throwable ex)
+		{
+			setException(ex);
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		long n = tasks.get();
+		return "ServerExecutor{" +
+				"server=" + server +
+				", kind=" + kind +
+				", tasks=" + n +
+				", peakConcurrency=" + peak.get() +
+				", meanPermitWaitMicros=" + (n == 0 ? 0 : waitNanos.get() / n / 1000) +
+				'}';
+	}
+}
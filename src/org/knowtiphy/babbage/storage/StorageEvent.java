@@ -0,0 +1,50 @@
+package org.knowtiphy.babbage.storage;
+
+import java.util.List;
+
+/**
+ * Typed versions of the events in the RDF event sets sent to storage listeners, for listeners that want to know
+ * what happened without building and querying a model (see IStorageEventListener).
+ *
+ * @author graham
+ */
+public interface StorageEvent
+{
+	String accountId();
+
+	record AccountOnline(String accountId) implements StorageEvent
+	{
+	}
+
+	record AccountSynced(String accountId) implements StorageEvent
+	{
+	}
+
+	record FolderSynced(String accountId, String folderId) implements StorageEvent
+	{
+	}
+
+	record MessageArrived(String accountId, String folderId, List<String> messageIds) implements StorageEvent
+	{
+		public int count()
+		{
+			return messageIds.size();
+		}
+	}
+
+	record MessageDeleted(String accountId, String folderId, List<String> messageIds) implements StorageEvent
+	{
+		public int count()
+		{
+			return messageIds.size();
+		}
+	}
+
+	record FlagsChanged(String accountId, String folderId, List<String> messageIds) implements StorageEvent
+	{
+		public int count()
+		{
+			return messageIds.size();
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package org.knowtiphy.babbage.storage;
 
+import java.io.IOException;
+
 /**
  * @author graham
  */
@@ -10,8 +12,10 @@ public class StorageFactory
 		return new LocalStorage();
 	}
 
-//	public static IStorage getRemote() throws IOException
-//	{
-//		return new RemoteStorage(6789);
-//	}
+	//	storage served by a PinkPigMailServer process on this machine
+
+	public static IStorage getRemote() throws IOException
+	{
+		return new RemoteStorage();
+	}
 }
\ No newline at end of file
@@ -0,0 +1,188 @@
+package org.knowtiphy.babbage.storage;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.ResourceFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * A compact append only buffer of triples for deltas. Terms (URIs, literal values, or Jena nodes) are interned to
+ * ints in a table that can be shared between buffers, and triples are kept as ints in one array, so building a
+ * delta allocates (almost) nothing per triple. Jena nodes are only made when the triples are read back, which for
+ * deltas is inside the write transaction.
+ *
+ * @author graham
+ */
+class TripleBuffer
+{
+	private final Terms terms;
+	private int[] spo = new int[3 * 16];
+	private int size = 0;
+
+	TripleBuffer(Terms terms)
+	{
+		this.terms = terms;
+	}
+
+	void add(int s, int p, int o)
+	{
+		if (3 * size == spo.length)
+		{
+			spo = Arrays.copyOf(spo, spo.length * 2);
+		}
+		spo[3 * size] = s;
+		spo[3 * size + 1] = p;
+		spo[3 * size + 2] = o;
+		size++;
+	}
+
+	void add(Triple triple)
+	{
+		add(terms.node(triple.getSubject()), terms.node(triple.getPredicate()), terms.node(triple.getObject()));
+	}
+
+	//	the number of triples in the buffer, counting duplicates
+
+	int size()
+	{
+		return size;
+	}
+
+	int subject(int i)
+	{
+		return spo[3 * i];
+	}
+
+	int predicate(int i)
+	{
+		return spo[3 * i + 1];
+	}
+
+	int object(int i)
+	{
+		return spo[3 * i + 2];
+	}
+
+	void forEach(Consumer<Triple> action)
+	{
+		for (int i = 0; i < size; i++)
+		{
+			action.accept(Triple.create(terms.node(subject(i)), terms.node(predicate(i)), terms.node(object(i))));
+		}
+	}
+
+	Model toModel()
+	{
+		var model = ModelFactory.createDefaultModel();
+		forEach(model.getGraph()::add);
+		return model;
+	}
+
+	//	the intern table for terms
+
+	static class Terms
+	{
+		private final Map<Object, Integer> ids = new HashMap<>();
+		private final List<Object> terms = new ArrayList<>();
+		private Node[] nodes = new Node[16];
+
+		int uri(String uri)
+		{
+			return intern(uri);
+		}
+
+		int literal(Object value)
+		{
+			return intern(new Value(value));
+		}
+
+		int node(Node node)
+		{
+			return node.isURI() ? intern(node.getURI()) : intern(node);
+		}
+
+		//	the URI a term is, or null if it isn't a URI
+		String getURI(int id)
+		{
+			var term = terms.get(id);
+			return term instanceof String ? (String) term : null;
+		}
+
+		Node node(int id)
+		{
+			if (id >= nodes.length)
+			{
+				nodes = Arrays.copyOf(nodes, Math.max(terms.size(), nodes.length * 2));
+			}
+
+			var node = nodes[id];
+			if (node == null)
+			{
+				var term = terms.get(id);
+				if (term instanceof String)
+				{
+					node = NodeFactory.createURI((String) term);
+				}
+				else if (term instanceof Value)
+				{
+					var value = ((Value) term).value;
+					//	the same literal Model.createTypedLiteral would make (e.g. a Calendar is an xsd:dateTime)
+					node = ResourceFactory.createTypedLiteral(value).asNode();
+				}
+				else
+				{
+					node = (Node) term;
+				}
+				nodes[id] = node;
+			}
+
+			return node;
+		}
+
+		private int intern(Object term)
+		{
+			var id = ids.get(term);
+			if (id == null)
+			{
+				id = terms.size();
+				ids.put(term, id);
+				terms.add(term);
+			}
+			return id;
+		}
+	}
+
+	//	a literal value -- wrapped so literal values never clash with URIs in the intern table
+
+	private static final class Value
+	{
+		final Object value;
+
+		Value(Object value)
+		{
+			this.value = value;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			return o instanceof Value && value.getClass() == ((Value) o).value.getClass()
+					&& value.equals(((Value) o).value);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return value.hashCode();
+		}
+	}
+}
@@ -1,7 +1,9 @@
 package org.knowtiphy.babbage.storage;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * @author graham
@@ -49,6 +51,10 @@ public class Vocabulary
 	public final static String HAS_SPECIAL = TBASE + "hasSpecial";
 	public final static String HAS_NAME = TBASE + "hasName";
 	public final static String HAS_UID_VALIDITY = TBASE + "hasUIDValidity";
+	public final static String HAS_UID_NEXT = TBASE + "hasUIDNext";
+	public final static String HAS_HIGHEST_MOD_SEQ = TBASE + "hasHighestModSeq";
+	//	the message count at the last sync, as opposed to the current count that IDLE keeps up to date
+	public final static String HAS_SYNC_MESSAGE_COUNT = TBASE + "hasSyncMessageCount";
 	public final static String HAS_MESSAGE_COUNT = TBASE + "hasMessageCount";
 	public final static String HAS_UNREAD_MESSAGE_COUNT = TBASE + "hasUnreadMessageCount";
 //    public final static String IS_JUNK_FOLDER = TBASE + "isJunkFolder";
@@ -78,6 +84,13 @@ public class Vocabulary
 	public final static String HAS_FILE_NAME = TBASE + "hasFileName";
 	public final static String HAS_MIME_TYPE = TBASE + "hasMimeType";
 	public final static String HAS_LOCAL_CID = TBASE + "hasLocalCID";
+	public final static String HAS_SIZE = TBASE + "hasSize";
+	//	where the content of an attachment we haven't downloaded yet is on the IMAP server
+	public final static String HAS_SECTION = TBASE + "hasSection";
+	public final static String HAS_TRANSFER_ENCODING = TBASE + "hasTransferEncoding";
+
+	//	content stored out of line in the blob store
+	public final static String BLOB = TBASE + "Blob";
 
 	// Vocabulary for CalDav
 	public final static String CALDAV_ACCOUNT = TBASE + "CALDAVAccount";
@@ -114,6 +127,7 @@ public class Vocabulary
 
 	public final static String EVENT = TBASE + "EVENT";
 	public final static String ACCOUNT_SYNCED = TBASE + "AccountSynced";
+	public final static String ACCOUNT_ONLINE = TBASE + "AccountOnline";
 	public final static String FOLDER_SYNCED = TBASE + "FolderSynced";
 	public final static String MESSAGE_FLAGS_CHANGED = TBASE + "MessageFlagsChanged";
 	public final static String MESSAGE_ARRIVED = TBASE + "MessageArrived";
@@ -134,6 +148,7 @@ public class Vocabulary
 	public final static String MARK_ANSWERED = TBASE + "MarkAnsweredOperation";
 	public final static String DELETE_MESSAGE = TBASE + "DeleteMessageOperation";
 	public final static String SEND_MESSAGE = TBASE + "SendMessageOperation";
+	public final static String FETCH_ATTACHMENT = TBASE + "FetchAttachmentOperation";
 	public final static String TRUST_SENDER = TBASE + "TrustSender";
 	public final static String TRUST_PROVIDER = TBASE + "TrustProvider";
 	public final static String HAS_RESOURCE = TBASE + "hasResource";
@@ -147,6 +162,7 @@ public class Vocabulary
 	static
 	{
 		eventSubClasses.put(ACCOUNT_SYNCED, EVENT);
+		eventSubClasses.put(ACCOUNT_ONLINE, EVENT);
 		eventSubClasses.put(FOLDER_SYNCED, EVENT);
 		eventSubClasses.put(MESSAGE_FLAGS_CHANGED, EVENT);
 		eventSubClasses.put(MESSAGE_ARRIVED, EVENT);
@@ -185,6 +201,7 @@ public class Vocabulary
 		operationsubClasses.put(MARK_JUNK, OPERATION);
 		operationsubClasses.put(MARK_ANSWERED, OPERATION);
 		operationsubClasses.put(SEND_MESSAGE, OPERATION);
+		operationsubClasses.put(FETCH_ATTACHMENT, OPERATION);
 		operationsubClasses.put(TRUST_SENDER, OPERATION);
 		operationsubClasses.put(TRUST_PROVIDER, OPERATION);
 		operationsubClasses.put(ADD_CALDAV_EVENT, OPERATION);
@@ -200,6 +217,25 @@ public class Vocabulary
 		allSubClasses.putAll(folderSubClasses);
 	}
 
+	//	the (transitive) super-classes of each class in allSubClasses -- used to materialize the rdf:type triples
+	//	implied by sub-classing in the cache, so queries on the cache don't need RDFS inference
+
+	public final static Map<String, Set<String>> allSuperClasses = new HashMap<>();
+
+	static
+	{
+		allSubClasses.forEach((sub, sup) ->
+		{
+			var sups = new HashSet<String>();
+			var s = sup;
+			while (s != null && sups.add(s))
+			{
+				s = allSubClasses.get(s);
+			}
+			allSuperClasses.put(sub, sups);
+		});
+	}
+
 	public static String E(Object... parts)
 	{
 		var builder = new StringBuilder();
@@ -0,0 +1,268 @@
+package org.knowtiphy.babbage.storage.remote;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One end of a connection between the storage server and a client. Frames are read on a reader thread and
+ * handed to a handler, and sent by a writer thread from a bounded queue -- the writer only flushes when the
+ * queue is empty, so a burst of frames goes out in a few large writes, and a full queue makes senders wait,
+ * so a client that can't keep up slows down what is sent to it rather than using up memory.
+ *
+ * @author graham
+ */
+public class Connection implements AutoCloseable
+{
+	private static final Logger LOGGER = Logger.getLogger(Connection.class.getName());
+
+	//	a frame that tells the writer to stop
+	private static final Frame STOP = new Frame((byte) -1, -1);
+
+	private final SocketChannel channel;
+	private final String name;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private final BlockingQueue<Frame> sendQ = new ArrayBlockingQueue<>(Wire.SEND_QUEUE_SIZE);
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+	//	the largest payload we accept -- anything bigger is a broken or hostile peer, and closes the connection
+	private volatile int maxPayload = Wire.MAX_PAYLOAD;
+	private Consumer<Frame> handler;
+	private Runnable onClose;
+
+	//	metrics
+	private final AtomicLong framesIn = new AtomicLong();
+	private final AtomicLong framesOut = new AtomicLong();
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+
+	public Connection(SocketChannel channel, String name)
+	{
+		this.channel = channel;
+		this.name = name;
+		in = new DataInputStream(new BufferedInputStream(new ChannelInput(channel), 64 * 1024));
+		out = new DataOutputStream(new BufferedOutputStream(new ChannelOutput(channel), 64 * 1024));
+	}
+
+	//	start reading and writing frames -- the handler is called on the reader thread, so must not block for long
+
+	public void start(Consumer<Frame> handler, Runnable onClose)
+	{
+		this.handler = handler;
+		this.onClose = onClose;
+
+		var reader = new Thread(this::read, name + "-reader");
+		reader.setDaemon(true);
+		reader.start();
+
+		var writer = new Thread(this::write, name + "-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	public void setMaxPayload(int maxPayload)
+	{
+		this.maxPayload = maxPayload;
+	}
+
+	public void send(Frame frame) throws IOException
+	{
+		if (closed.get())
+		{
+			throw new IOException("Connection closed");
+		}
+
+		try
+		{
+			//	don't wait forever if the connection closes while we wait
+			while (!sendQ.offer(frame, 100, TimeUnit.MILLISECONDS))
+			{
+				if (closed.get())
+				{
+					throw new IOException("Connection closed");
+				}
+			}
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException(ex);
+		}
+	}
+
+	public boolean isOpen()
+	{
+		return !closed.get();
+	}
+
+	@Override
+	public void close()
+	{
+		if (closed.compareAndSet(false, true))
+		{
+			LOGGER.log(Level.INFO, "{0}", this);
+			sendQ.clear();
+			sendQ.offer(STOP);
+			try
+			{
+				channel.close();
+			}
+			catch (IOException ex)
+			{
+				//	ignore
+			}
+			if (onClose != null)
+			{
+				onClose.run();
+			}
+		}
+	}
+
+	private void read()
+	{
+		try
+		{
+			while (!closed.get())
+			{
+				int length = in.readInt();
+				byte type = in.readByte();
+				long id = in.readLong();
+				if (length < 9 || length - 9 > maxPayload)
+				{
+					throw new IOException("Bad frame length " + length);
+				}
+				var payload = new byte[length - 9];
+				in.readFully(payload);
+				framesIn.incrementAndGet();
+				bytesIn.addAndGet(length + 4);
+				handler.accept(new Frame(type, id, payload));
+			}
+		}
+		catch (IOException | RuntimeException ex)
+		{
+			if (!closed.get())
+			{
+				LOGGER.log(Level.FINE, "{0} :: read failed :: {1}", new Object[]{name, ex.getLocalizedMessage()});
+			}
+		}
+		finally
+		{
+			close();
+		}
+	}
+
+	private void write()
+	{
+		try
+		{
+			while (true)
+			{
+				var frame = sendQ.take();
+				while (frame != null)
+				{
+					if (frame == STOP)
+					{
+						return;
+					}
+					out.writeInt(frame.payload.length + 9);
+					out.writeByte(frame.type);
+					out.writeLong(frame.id);
+					out.write(frame.payload);
+					framesOut.incrementAndGet();
+					bytesOut.addAndGet(frame.payload.length + 13);
+					frame = sendQ.poll();
+				}
+				out.flush();
+			}
+		}
+		catch (IOException | InterruptedException ex)
+		{
+			if (!closed.get())
+			{
+				LOGGER.log(Level.FINE, "{0} :: write failed :: {1}", new Object[]{name, ex.getLocalizedMessage()});
+			}
+		}
+		finally
+		{
+			close();
+		}
+	}
+
+	//	note: the streams of Channels lock the channel for both reading and writing, so a blocked read would stop
+	//	us writing -- a socket channel can be read and written by different threads at once, so use it directly
+
+	private static final class ChannelInput extends InputStream
+	{
+		private final SocketChannel channel;
+
+		ChannelInput(SocketChannel channel)
+		{
+			this.channel = channel;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			var b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			return channel.read(ByteBuffer.wrap(b, off, len));
+		}
+	}
+
+	private static final class ChannelOutput extends OutputStream
+	{
+		private final SocketChannel channel;
+
+		ChannelOutput(SocketChannel channel)
+		{
+			this.channel = channel;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			var buffer = ByteBuffer.wrap(b, off, len);
+			while (buffer.hasRemaining())
+			{
+				channel.write(buffer);
+			}
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Connection{" +
+				"name=" + name +
+				", framesIn=" + framesIn.get() +
+				", framesOut=" + framesOut.get() +
+				", bytesIn=" + bytesIn.get() +
+				", bytesOut=" + bytesOut.get() +
+				'}';
+	}
+}
@@ -0,0 +1,37 @@
+package org.knowtiphy.babbage.storage.remote;
+
+//	a frame of the protocol between the storage server and its clients (see Wire)
+
+public class Frame
+{
+	public final byte type;
+	public final long id;
+	public final byte[] payload;
+
+	public Frame(byte type, long id, byte[] payload)
+	{
+		this.type = type;
+		this.id = id;
+		this.payload = payload;
+	}
+
+	public Frame(byte type, long id)
+	{
+		this(type, id, new byte[0]);
+	}
+
+	public Wire.In in()
+	{
+		return new Wire.In(payload);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Frame{" +
+				"type=" + type +
+				", id=" + id +
+				", size=" + payload.length +
+				'}';
+	}
+}
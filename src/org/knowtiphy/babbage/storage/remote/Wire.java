@@ -0,0 +1,506 @@
+package org.knowtiphy.babbage.storage.remote;
+
+import org.apache.jena.datatypes.TypeMapper;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.RDFNode;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.binding.BindingMap;
+import org.knowtiphy.babbage.Babbage;
+import org.knowtiphy.babbage.storage.StorageEvent;
+import org.knowtiphy.utils.OS;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The protocol between the storage server process and its (local) clients. Everything is sent as frames --
+ * an int length, a byte frame type, a long request id, and a payload -- so many requests can be in flight on
+ * one connection at once, with responses matched to requests by their id, in whatever order they complete.
+ * Pushed change events carry the id of the subscription they belong to.
+ * <p>
+ * Payloads are a compact binary encoding of strings, lists of strings, RDF terms and query solutions, except
+ * operation and event models, which are sent as RDF Thrift.
+ * <p>
+ * The server listens on a Unix domain socket (babbage.socket, by default in a directory under the data directory
+ * that only the user can use), so only the user running the server can connect to it. If babbage.port is set it
+ * listens on that port on the loopback interface instead, and the first frame a client sends must be an AUTH
+ * frame carrying the token the server wrote to a file only the user can read.
+ *
+ * @author graham
+ */
+public class Wire
+{
+	//	requests
+	public static final byte DO_OPERATION = 1;
+	public static final byte QUERY = 2;
+	public static final byte CANCEL = 3;
+	public static final byte GET_CONTENT = 4;
+	public static final byte SUBSCRIBE = 5;
+	public static final byte MOVE_TO_JUNK = 6;
+	public static final byte COPY_MESSAGES = 7;
+	public static final byte AUTH = 8;
+	//	the client has read a chunk of a query, so the server can send another
+	public static final byte CREDIT = 9;
+
+	//	responses
+	public static final byte DONE = 64;
+	public static final byte ERROR = 65;
+	public static final byte ROWS = 66;
+	public static final byte END = 67;
+	public static final byte CONTENT = 68;
+
+	//	pushed change events
+	public static final byte EVENT_MODEL = 96;
+	public static final byte EVENTS = 97;
+
+	//	kinds of subscription
+	public static final byte MODEL_FEED = 0;
+	public static final byte EVENT_FEED = 1;
+
+	//	the number of query solutions sent in each ROWS frame, and the number of ROWS frames of a query the server
+	//	sends ahead of what the client has read
+	public static final int ROWS_PER_FRAME = 256;
+	public static final int CURSOR_WINDOW = 4;
+
+	//	the number of frames we queue for sending on a connection before senders have to wait
+	static final int SEND_QUEUE_SIZE = 256;
+
+	//	the largest payload we accept in a frame, and the largest we accept before a client has authenticated
+	public static final int MAX_PAYLOAD = Integer.getInteger("babbage.maxFrameSize", 256 * 1024 * 1024);
+	public static final int MAX_AUTH_PAYLOAD = 1024;
+
+	private static final String RUN_DIR = "run";
+	private static final String SOCKET_FILE = "babbage.sock";
+	private static final String TOKEN_FILE = "server.token";
+	private static final Set<PosixFilePermission> USER_ONLY_DIR = PosixFilePermissions.fromString("rwx------");
+	private static final Set<PosixFilePermission> USER_ONLY_FILE = PosixFilePermissions.fromString("rw-------");
+
+	//	kinds of RDF term
+	private static final byte UNBOUND = 0;
+	private static final byte URI = 1;
+	private static final byte BLANK = 2;
+	private static final byte LITERAL = 3;
+
+	//	kinds of typed event
+	private static final byte ACCOUNT_ONLINE = 1;
+	private static final byte ACCOUNT_SYNCED = 2;
+	private static final byte FOLDER_SYNCED = 3;
+	private static final byte MESSAGE_ARRIVED = 4;
+	private static final byte MESSAGE_DELETED = 5;
+	private static final byte FLAGS_CHANGED = 6;
+
+	//	something that writes a payload
+
+	public interface PayloadWriter
+	{
+		void write(Out out) throws IOException;
+	}
+
+	public static byte[] payload(PayloadWriter writer)
+	{
+		try
+		{
+			var out = new Out();
+			writer.write(out);
+			return out.toByteArray();
+		}
+		catch (IOException ex)
+		{
+			//	can't happen writing to memory, but the RDF writer might choke on a model
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	public static SocketAddress address()
+	{
+		var port = Integer.getInteger("babbage.port");
+		if (port != null)
+		{
+			return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+		}
+
+		var socket = System.getProperty("babbage.socket");
+		return UnixDomainSocketAddress.of(socket != null ? Paths.get(socket) : runDir().resolve(SOCKET_FILE));
+	}
+
+	//	a Unix domain socket is protected by the file system, anything else needs a token
+
+	public static boolean needsToken(SocketAddress address)
+	{
+		return !(address instanceof UnixDomainSocketAddress);
+	}
+
+	//	make a new token, only readable by the user, for clients to authenticate with
+
+	public static String newToken() throws IOException
+	{
+		var bytes = new byte[32];
+		new SecureRandom().nextBytes(bytes);
+		var token = Base64.getEncoder().encodeToString(bytes);
+
+		var file = tokenFile();
+		createPrivateDirectories(file.getParent());
+		Files.deleteIfExists(file);
+		try
+		{
+			Files.createFile(file, PosixFilePermissions.asFileAttribute(USER_ONLY_FILE));
+		}
+		catch (UnsupportedOperationException ex)
+		{
+			//	not a POSIX file system -- the data directory is the user's anyway
+			Files.createFile(file);
+		}
+		Files.writeString(file, token);
+		return token;
+	}
+
+	public static String readToken() throws IOException
+	{
+		return Files.readString(tokenFile()).trim();
+	}
+
+	public static void deleteToken() throws IOException
+	{
+		Files.deleteIfExists(tokenFile());
+	}
+
+	//	create a directory (and its parents) if needed -- a directory we create can only be used by the user
+
+	public static void createPrivateDirectories(Path dir) throws IOException
+	{
+		if (!Files.exists(dir))
+		{
+			Files.createDirectories(dir);
+			restrict(dir, USER_ONLY_DIR);
+		}
+	}
+
+	//	make a file (e.g. a socket) only usable by the user
+
+	public static void restrict(Path file) throws IOException
+	{
+		restrict(file, USER_ONLY_FILE);
+	}
+
+	private static void restrict(Path file, Set<PosixFilePermission> permissions) throws IOException
+	{
+		try
+		{
+			Files.setPosixFilePermissions(file, permissions);
+		}
+		catch (UnsupportedOperationException ex)
+		{
+			//	not a POSIX file system
+		}
+	}
+
+	private static Path runDir()
+	{
+		return Paths.get(OS.getDataDir(Babbage.class).toString(), RUN_DIR);
+	}
+
+	private static Path tokenFile()
+	{
+		return runDir().resolve(TOKEN_FILE);
+	}
+
+	//	a payload being written
+
+	public static class Out extends DataOutputStream
+	{
+		public Out()
+		{
+			super(new ByteArrayOutputStream());
+		}
+
+		public byte[] toByteArray()
+		{
+			return ((ByteArrayOutputStream) out).toByteArray();
+		}
+
+		public Out string(String s) throws IOException
+		{
+			if (s == null)
+			{
+				writeInt(-1);
+			}
+			else
+			{
+				var bytes = s.getBytes(StandardCharsets.UTF_8);
+				writeInt(bytes.length);
+				write(bytes);
+			}
+			return this;
+		}
+
+		public Out strings(Collection<String> strings) throws IOException
+		{
+			writeInt(strings.size());
+			for (String s : strings)
+			{
+				string(s);
+			}
+			return this;
+		}
+
+		public Out bytes(byte[] bytes) throws IOException
+		{
+			writeInt(bytes.length);
+			write(bytes);
+			return this;
+		}
+
+		public Out model(Model model) throws IOException
+		{
+			var bytes = new ByteArrayOutputStream();
+			RDFDataMgr.write(bytes, model, Lang.RDFTHRIFT);
+			return bytes(bytes.toByteArray());
+		}
+
+		public Out node(Node node) throws IOException
+		{
+			if (node == null)
+			{
+				writeByte(UNBOUND);
+			}
+			else if (node.isURI())
+			{
+				writeByte(URI);
+				string(node.getURI());
+			}
+			else if (node.isBlank())
+			{
+				writeByte(BLANK);
+				string(node.getBlankNodeLabel());
+			}
+			else
+			{
+				writeByte(LITERAL);
+				string(node.getLiteralLexicalForm());
+				string(node.getLiteralDatatypeURI());
+				string(node.getLiteralLanguage());
+			}
+			return this;
+		}
+
+		//	a chunk of query solutions -- the variables, then the value of each variable in each solution
+
+		public Out rows(List<String> vars, List<QuerySolution> solutions) throws IOException
+		{
+			strings(vars);
+			writeInt(solutions.size());
+			for (QuerySolution solution : solutions)
+			{
+				for (String var : vars)
+				{
+					RDFNode value = solution.get(var);
+					node(value == null ? null : value.asNode());
+				}
+			}
+			return this;
+		}
+
+		public Out events(List<StorageEvent> events) throws IOException
+		{
+			writeInt(events.size());
+			for (StorageEvent event : events)
+			{
+				event(event);
+			}
+			return this;
+		}
+
+		private void event(StorageEvent event) throws IOException
+		{
+			if (event instanceof StorageEvent.AccountOnline)
+			{
+				writeByte(ACCOUNT_ONLINE);
+				string(event.accountId());
+			}
+			else if (event instanceof StorageEvent.AccountSynced)
+			{
+				writeByte(ACCOUNT_SYNCED);
+				string(event.accountId());
+			}
+			else if (event instanceof StorageEvent.FolderSynced)
+			{
+				writeByte(FOLDER_SYNCED);
+				string(event.accountId()).string(((StorageEvent.FolderSynced) event).folderId());
+			}
+			else if (event instanceof StorageEvent.MessageArrived)
+			{
+				var e = (StorageEvent.MessageArrived) event;
+				writeByte(MESSAGE_ARRIVED);
+				string(e.accountId()).string(e.folderId()).strings(e.messageIds());
+			}
+			else if (event instanceof StorageEvent.MessageDeleted)
+			{
+				var e = (StorageEvent.MessageDeleted) event;
+				writeByte(MESSAGE_DELETED);
+				string(e.accountId()).string(e.folderId()).strings(e.messageIds());
+			}
+			else if (event instanceof StorageEvent.FlagsChanged)
+			{
+				var e = (StorageEvent.FlagsChanged) event;
+				writeByte(FLAGS_CHANGED);
+				string(e.accountId()).string(e.folderId()).strings(e.messageIds());
+			}
+			else
+			{
+				throw new IOException("Unknown event " + event);
+			}
+		}
+	}
+
+	//	a payload being read
+
+	public static class In extends DataInputStream
+	{
+		public In(byte[] payload)
+		{
+			super(new ByteArrayInputStream(payload));
+		}
+
+		public String string() throws IOException
+		{
+			int length = readInt();
+			if (length < 0)
+			{
+				return null;
+			}
+			var bytes = new byte[length];
+			readFully(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		public List<String> strings() throws IOException
+		{
+			int n = readInt();
+			var strings = new ArrayList<String>(n);
+			for (int i = 0; i < n; i++)
+			{
+				strings.add(string());
+			}
+			return strings;
+		}
+
+		public byte[] bytes() throws IOException
+		{
+			var bytes = new byte[readInt()];
+			readFully(bytes);
+			return bytes;
+		}
+
+		public Model model() throws IOException
+		{
+			var model = ModelFactory.createDefaultModel();
+			RDFDataMgr.read(model, new ByteArrayInputStream(bytes()), Lang.RDFTHRIFT);
+			return model;
+		}
+
+		public Node node() throws IOException
+		{
+			switch (readByte())
+			{
+				case UNBOUND:
+					return null;
+				case URI:
+					return NodeFactory.createURI(string());
+				case BLANK:
+					return NodeFactory.createBlankNode(string());
+				case LITERAL:
+					var lex = string();
+					var datatype = string();
+					var lang = string();
+					return lang != null && !lang.isEmpty() ? NodeFactory.createLiteral(lex, lang)
+							: NodeFactory.createLiteral(lex, TypeMapper.getInstance().getSafeTypeByName(datatype));
+				default:
+					throw new IOException("Bad RDF term");
+			}
+		}
+
+		//	read a chunk of query solutions into the given list of variables and list of bindings
+
+		public void rows(List<String> vars, Collection<Binding> bindings) throws IOException
+		{
+			vars.clear();
+			vars.addAll(strings());
+			var vs = new ArrayList<Var>(vars.size());
+			vars.forEach(v -> vs.add(Var.alloc(v)));
+
+			int n = readInt();
+			for (int i = 0; i < n; i++)
+			{
+				BindingMap binding = BindingFactory.create();
+				for (Var var : vs)
+				{
+					var node = node();
+					if (node != null)
+					{
+						binding.add(var, node);
+					}
+				}
+				bindings.add(binding);
+			}
+		}
+
+		public List<StorageEvent> events() throws IOException
+		{
+			int n = readInt();
+			var events = new ArrayList<StorageEvent>(n);
+			for (int i = 0; i < n; i++)
+			{
+				events.add(event());
+			}
+			return events;
+		}
+
+		private StorageEvent event() throws IOException
+		{
+			switch (readByte())
+			{
+				case ACCOUNT_ONLINE:
+					return new StorageEvent.AccountOnline(string());
+				case ACCOUNT_SYNCED:
+					return new StorageEvent.AccountSynced(string());
+				case FOLDER_SYNCED:
+					return new StorageEvent.FolderSynced(string(), string());
+				case MESSAGE_ARRIVED:
+					return new StorageEvent.MessageArrived(string(), string(), strings());
+				case MESSAGE_DELETED:
+					return new StorageEvent.MessageDeleted(string(), string(), strings());
+				case FLAGS_CHANGED:
+					return new StorageEvent.FlagsChanged(string(), string(), strings());
+				default:
+					throw new IOException("Bad event");
+			}
+		}
+	}
+}